@@ -0,0 +1,355 @@
+package nn.DenisAleksandrov;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmark suite for the network, trainer and I/O hot paths, run with
+ * java --add-modules jdk.incubator.vector nn.DenisAleksandrov.Benchmark [options]
+ *
+ * Every benchmark runs in a fresh JVM (unless --no-fork) so JIT decisions of one cannot leak into another,
+ * then goes through warm-up iterations that are thrown away and measurement iterations of a fixed duration.
+ * Reported per benchmark: mean time per operation with its standard deviation over the measurement iterations,
+ * and bytes allocated per operation by the benchmark thread (the equivalent of JMH's gc profiler).
+ * Weights and data are generated from fixed seeds so runs are comparable.
+ *
+ * Options:
+ * --filter text       only run benchmarks whose name contains text, e.g. "train" or "[4x6x8x10x12]"
+ * --warmup n          warm-up iterations, default 3
+ * --iterations n      measurement iterations, default 5
+ * --time ms           duration of one iteration, default 500
+ * --no-fork           run everything in this JVM
+ * --csv file          also write the results to file
+ * --baseline file     compare against the results of an earlier --csv run
+ */
+public final class Benchmark {
+    /**
+     * Layer shapes the network benchmarks are parameterised over, from the OR test network to wide hidden layers
+     */
+    static final int[][] SHAPES = {{2, 2, 2, 2}, {4, 6, 8, 10, 12}, {4, 128, 128, 12}, {64, 512, 512, 12}};
+
+    /**
+     * Results are written here so the JIT cannot drop the benchmarked work
+     */
+    private static volatile double sink;
+
+    private Benchmark(){
+    }
+
+    /**
+     * One benchmarked operation, returns a value that depends on its work
+     */
+    private interface Op{
+        double run() throws IOException;
+    }
+
+    /**
+     * Builds every benchmark, keyed by name. Only the ones that are run have their setup executed.
+     */
+    private static Map<String, Setup> benchmarks(){
+        Map<String, Setup> all = new LinkedHashMap<>();
+        for(int[] shape : SHAPES){
+            String suffix = Arrays.toString(shape).replace(", ", "x");
+            all.put("feedForward" + suffix, () -> {
+                Network network = network(shape);
+                double[] input = vector(shape[0], 1);
+                return () -> network.feedForward(input)[0].aOutput;
+            });
+            all.put("infer" + suffix, () -> {
+                Network network = network(shape);
+                double[] input = vector(shape[0], 1);
+                double[] output = new double[network.OUTPUT_SIZE];
+                return () -> network.infer(input, output)[0];
+            });
+            all.put("inferCompiled" + suffix, () -> {
+                InferenceModel compiled = NetworkCompiler.compile(network(shape));
+                double[] input = vector(shape[0], 1);
+                double[] output = new double[compiled.getOutputSize()];
+                return () -> compiled.infer(input, output)[0];
+            });
+            all.put("train" + suffix, () -> {
+                Network network = network(shape);
+                double[] input = vector(shape[0], 1);
+                double[] target = vector(network.OUTPUT_SIZE, 2);
+                return () -> {
+                    network.train(input, target, 1e-4);
+                    return network.getMSE();
+                };
+            });
+            all.put("backpropUpdate" + suffix, () -> {
+                Network network = network(shape);
+                double[] target = vector(network.OUTPUT_SIZE, 2);
+                network.feedForward(vector(shape[0], 1));
+                return () -> {
+                    network.backpropUpdate(target, 1e-4);
+                    return network.getMSE();
+                };
+            });
+            all.put("trainBatch32" + suffix, () -> {
+                Network network = network(shape);
+                double[] inputs = vector(32 * shape[0], 1);
+                double[] targets = vector(32 * network.OUTPUT_SIZE, 2);
+                return () -> {
+                    network.trainBatch(inputs, targets, 0, 32, 1e-4);
+                    return network.getMSE();
+                };
+            });
+            all.put("saveNetwork" + suffix, () -> {
+                Network network = network(shape);
+                String file = temporary("network.txt");
+                return () -> {
+                    network.saveNetwork(file);
+                    return new File(file).length();
+                };
+            });
+            all.put("loadNetwork" + suffix, () -> {
+                String file = temporary("network.txt");
+                network(shape).saveNetwork(file);
+                return () -> Network.loadNetwork(file).getMSE();
+            });
+            all.put("saveBinary" + suffix, () -> {
+                Network network = network(shape);
+                String file = temporary("network.bin");
+                return () -> {
+                    network.saveBinary(file);
+                    return new File(file).length();
+                };
+            });
+            all.put("loadBinary" + suffix, () -> {
+                String file = temporary("network.bin");
+                network(shape).saveBinary(file);
+                return () -> Network.loadBinary(file).getMSE();
+            });
+        }
+        all.put("parseRecording[20000]", () -> {
+            String file = recording(20_000);
+            return () -> CsvParser.parse(file).SIZE;
+        });
+        all.put("getDataFromFile[20000]", () -> {
+            String file = recording(20_000);
+            return () -> Trainer.getDataFromFile(file)[0].length;
+        });
+        return all;
+    }
+
+    private interface Setup{
+        Op create() throws IOException;
+    }
+
+    /**
+     * @return network of the given shape with weights and biases from a fixed seed
+     */
+    private static Network network(int[] shape){
+        Network network = new Network(shape);
+        Random random = new Random(42);
+        for(int layer = 1; layer < shape.length; layer++){
+            for(int i = 0; i < network.weights[layer].length; i++){
+                network.weights[layer][i] = 2 * random.nextDouble() - 1;
+            }
+            for(int i = 0; i < network.biases[layer].length; i++){
+                network.biases[layer][i] = 2 * random.nextDouble() - 1;
+            }
+        }
+        return network;
+    }
+
+    private static double[] vector(int length, long seed){
+        Random random = new Random(seed);
+        double[] vector = new double[length];
+        for(int i = 0; i < length; i++){
+            vector[i] = random.nextDouble();
+        }
+        return vector;
+    }
+
+    private static String temporary(String name) throws IOException {
+        Path file = Files.createTempFile("ffnn-bench-", "-" + name);
+        file.toFile().deleteOnExit();
+        return file.toString();
+    }
+
+    /**
+     * Writes a data harvester style recording of random samples
+     */
+    private static String recording(int lines) throws IOException {
+        String file = temporary("recording.txt");
+        new File(file + ".cache").deleteOnExit();
+        Random random = new Random(7);
+        try(BufferedWriter writer = new BufferedWriter(new FileWriter(file))){
+            for(int line = 0; line < lines; line++){
+                for(int i = 0; i < Dataset.HARVESTER_INPUT_WIDTH + Dataset.HARVESTER_TARGET_WIDTH; i++){
+                    if(i > 0) writer.write(", ");
+                    writer.write(Integer.toString(i < Dataset.HARVESTER_INPUT_WIDTH ? random.nextInt(400)
+                            : random.nextInt(2)));
+                }
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Quick in-process timing for the reports of the inference models, warming up with the first rounds
+     * @return best mean ns per infer over five rounds of 200 ms
+     */
+    static double inferNanos(InferenceModel model, double[] input){
+        double[] output = new double[model.getOutputSize()];
+        double best = Double.POSITIVE_INFINITY;
+        for(int round = 0; round < 5; round++){
+            int calls = 0;
+            long start = System.nanoTime();
+            long now;
+            do{
+                for(int i = 0; i < 64; i++){
+                    model.infer(input, output);
+                }
+                calls += 64;
+                now = System.nanoTime();
+            }
+            while(now - start < 200_000_000);
+            best = Math.min(best, (double) (now - start) / calls);
+        }
+        return best;
+    }
+
+    /**
+     * Runs one benchmark in this JVM
+     * @return {mean ns/op, standard deviation ns/op, bytes/op}
+     */
+    private static double[] measure(Op op, int warmup, int iterations, long millis) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        double[] nanosPerOp = new double[iterations];
+        long allocated = 0;
+        long ops = 0;
+        for(int iteration = -warmup; iteration < iterations; iteration++){
+            long deadline = System.nanoTime() + millis * 1_000_000;
+            long count = 0;
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            long now;
+            // run in growing batches so reading the clock does not dominate short operations
+            int batch = 1;
+            double result = 0;
+            do{
+                for(int i = 0; i < batch; i++){
+                    result += op.run();
+                }
+                count += batch;
+                if(batch < 1 << 16) batch *= 2;
+                now = System.nanoTime();
+            }
+            while(now < deadline);
+            sink = result;
+            if(iteration >= 0){
+                nanosPerOp[iteration] = (double) (now - start) / count;
+                allocated += threads.getThreadAllocatedBytes(thread) - bytes;
+                ops += count;
+            }
+        }
+        double mean = 0;
+        for(double value : nanosPerOp){
+            mean += value / iterations;
+        }
+        double variance = 0;
+        for(double value : nanosPerOp){
+            variance += (value - mean) * (value - mean) / Math.max(1, iterations - 1);
+        }
+        return new double[]{mean, Math.sqrt(variance), (double) allocated / ops};
+    }
+
+    /**
+     * Runs one benchmark in a child JVM with the same class path and module options
+     */
+    private static double[] fork(String name, int warmup, int iterations, long millis)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Benchmark.class.getName());
+        command.addAll(Arrays.asList("--child", name, "--warmup", "" + warmup, "--iterations", "" + iterations,
+                "--time", "" + millis));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String output = new String(process.getInputStream().readAllBytes()).trim();
+        if(process.waitFor() != 0) throw new IOException("Benchmark " + name + " failed: " + output);
+        String[] lines = output.split("\n");
+        String[] values = lines[lines.length - 1].trim().split(" ");
+        return new double[]{Double.parseDouble(values[0]), Double.parseDouble(values[1]),
+                Double.parseDouble(values[2])};
+    }
+
+    private static Map<String, Double> readBaseline(String file) throws IOException {
+        Map<String, Double> baseline = new LinkedHashMap<>();
+        for(String line : Files.readAllLines(Paths.get(file))){
+            String[] fields = line.split(",");
+            if(fields.length >= 2 && !fields[0].equals("benchmark")) baseline.put(fields[0], Double.parseDouble(fields[1]));
+        }
+        return baseline;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String filter = "";
+        String child = null;
+        String csv = null;
+        String baselineFile = null;
+        int warmup = 3;
+        int iterations = 5;
+        long millis = 500;
+        boolean fork = true;
+        for(int i = 0; i < args.length; i++){
+            switch(args[i]){
+                case "--filter": filter = args[++i]; break;
+                case "--child": child = args[++i]; break;
+                case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                case "--time": millis = Long.parseLong(args[++i]); break;
+                case "--no-fork": fork = false; break;
+                case "--csv": csv = args[++i]; break;
+                case "--baseline": baselineFile = args[++i]; break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        Map<String, Setup> all = benchmarks();
+        if(child != null){
+            double[] result = measure(all.get(child).create(), warmup, iterations, millis);
+            System.out.println(result[0] + " " + result[1] + " " + result[2]);
+            return;
+        }
+        Map<String, Double> baseline = baselineFile == null ? null : readBaseline(baselineFile);
+        System.out.printf("kernels %s, %d warm-up + %d x %d ms iterations%s%n", Kernels.DEFAULT.name(), warmup,
+                iterations, millis, fork ? ", one JVM per benchmark" : "");
+        System.out.printf("%-32s %14s %12s %12s%s%n", "benchmark", "ns/op", "+-", "B/op",
+                baseline == null ? "" : "    vs baseline");
+        StringBuilder rows = new StringBuilder("benchmark,ns_per_op,stddev,bytes_per_op\n");
+        for(Map.Entry<String, Setup> entry : all.entrySet()){
+            String name = entry.getKey();
+            if(!name.contains(filter)) continue;
+            double[] result = fork ? fork(name, warmup, iterations, millis)
+                    : measure(entry.getValue().create(), warmup, iterations, millis);
+            String comparison = "";
+            if(baseline != null && baseline.containsKey(name)){
+                comparison = String.format("    %.2fx", baseline.get(name) / result[0]);
+            }
+            System.out.printf("%-32s %14.1f %12.1f %12.1f%s%n", name, result[0], result[1], result[2], comparison);
+            rows.append(String.format("%s,%f,%f,%f%n", name, result[0], result[1], result[2]));
+        }
+        if(csv != null) Files.write(Paths.get(csv), rows.toString().getBytes());
+    }
+}
@@ -0,0 +1,362 @@
+package nn.DenisAleksandrov;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary checkpoint format for Network and QuantizedNetwork.
+ *
+ * File format, all values little-endian:
+ * int magic "FFNN"
+ * int version
+ * int bytes per value: 8 for float64, 4 for float32, 1 for int8
+ *     float32 checkpoints hold a Network's values rounded to floats, half the size of float64 ones, and load
+ *     back into a Network widened to doubles
+ * int number of layers L
+ * int[L] layer sizes
+ * int[L - 1] ordinals of the Activation of every layer after the input layer
+ * double MSE
+ * zero padding up to a multiple of 8 bytes
+ * for every layer after the input layer: weights (row-major, as in Network.weights) then biases
+ *     int8 checkpoints instead store the byte weights zero padded to a multiple of 4 bytes, then float32 row
+ *     scales, biases, input scales and input offsets, see QuantizedNetwork
+ * int CRC32 of everything before it
+ *
+ * Loading maps the file and copies the values straight into the network's arrays, nothing is parsed and
+ * the random initialization of the constructor is skipped.
+ */
+public final class Checkpoint {
+    /**
+     * "FFNN" read as a little-endian int
+     */
+    static final int MAGIC = 0x4E4E4646;
+    static final int VERSION = 1;
+    static final int FLOAT64 = 8;
+    static final int FLOAT32 = 4;
+    static final int INT8 = 1;
+
+    private Checkpoint(){
+    }
+
+    /**
+     * Writes a network with float64 values
+     * @param network network to save
+     * @param pathname where to save it
+     * @throws IOException in the case the file cannot be written
+     */
+    static void write(Network network, String pathname) throws IOException {
+        write(network, pathname, false);
+    }
+
+    /**
+     * Writes a network with float64 values, or with float32 values rounded from them
+     * @param network network to save
+     * @param pathname where to save it
+     * @param singlePrecision whether to store the values as float32 instead of float64
+     * @throws IOException in the case the file cannot be written
+     */
+    static void write(Network network, String pathname, boolean singlePrecision) throws IOException {
+        write(network.LAYER_SIZES, network.activations, network.weights, network.biases, network.getMSE(),
+                singlePrecision ? FLOAT32 : FLOAT64, pathname);
+    }
+
+    /**
+     * Writes double precision weights and biases, they do not have to belong to a live network
+     * @param layerSizes number of neurons at each layer
+     * @param activations activation of each layer, activations[0] is ignored
+     * @param weights weights[layer] laid out as Network.weights
+     * @param biases biases[layer] laid out as Network.biases
+     * @param mse mean squared error to record
+     * @param pathname where to save the checkpoint
+     * @throws IOException in the case the file cannot be written
+     */
+    static void write(int[] layerSizes, Activation[] activations, double[][] weights, double[][] biases,
+                      double mse, String pathname) throws IOException {
+        write(layerSizes, activations, weights, biases, mse, FLOAT64, pathname);
+    }
+
+    /**
+     * @param valueBytes FLOAT64 or FLOAT32
+     */
+    private static void write(int[] layerSizes, Activation[] activations, double[][] weights, double[][] biases,
+                              double mse, int valueBytes, String pathname) throws IOException {
+        ByteBuffer buffer = header(layerSizes, activations, valueBytes, values(layerSizes) * valueBytes, mse);
+        for(int layer = 1; layer < layerSizes.length; layer++){
+            putValues(buffer, valueBytes, weights[layer]);
+            putValues(buffer, valueBytes, biases[layer]);
+        }
+        finish(buffer, pathname);
+    }
+
+    /**
+     * Writes an int8 network
+     * @param network network to save
+     * @param pathname where to save it
+     * @throws IOException in the case the file cannot be written
+     */
+    static void write(QuantizedNetwork network, String pathname) throws IOException {
+        long payload = 0;
+        for(int layer = 1; layer < network.NETWORK_SIZE; layer++){
+            payload += pad(network.weights[layer].length) + 8L * (network.LAYER_SIZES[layer]
+                    + network.LAYER_SIZES[layer - 1]);
+        }
+        ByteBuffer buffer = header(network.LAYER_SIZES, network.activations, INT8, payload, Double.NaN);
+        for(int layer = 1; layer < network.NETWORK_SIZE; layer++){
+            buffer.put(network.weights[layer]);
+            buffer.position(pad(buffer.position()));
+            putFloats(buffer, network.rowScales[layer]);
+            putFloats(buffer, network.biases[layer]);
+            putFloats(buffer, network.inputScales[layer]);
+            putFloats(buffer, network.inputOffsets[layer]);
+        }
+        finish(buffer, pathname);
+    }
+
+    /**
+     * Reads an int8 checkpoint
+     * @param pathname checkpoint to read
+     * @return loaded network
+     * @throws IOException in the case the file cannot be read or is not a valid int8 checkpoint
+     */
+    static QuantizedNetwork readQuantizedNetwork(String pathname) throws IOException {
+        MappedByteBuffer buffer = map(pathname);
+        if(buffer.getInt(8) != INT8) throw new IOException("Not an int8 checkpoint: " + pathname);
+        int[] layerSizes = readLayerSizes(buffer);
+        QuantizedNetwork network = new QuantizedNetwork(layerSizes, readActivations(buffer, layerSizes));
+        buffer.getDouble();
+        buffer.position(align(buffer.position()));
+        for(int layer = 1; layer < layerSizes.length; layer++){
+            buffer.get(network.weights[layer]);
+            buffer.position(pad(buffer.position()));
+            getFloats(buffer, network.rowScales[layer]);
+            getFloats(buffer, network.biases[layer]);
+            getFloats(buffer, network.inputScales[layer]);
+            getFloats(buffer, network.inputOffsets[layer]);
+        }
+        network.prepare();
+        return network;
+    }
+
+    /**
+     * Reads a checkpoint of either precision into a Network
+     * @param pathname checkpoint to read
+     * @return loaded network
+     * @throws IOException in the case the file cannot be read or is not a valid checkpoint
+     */
+    static Network readNetwork(String pathname) throws IOException {
+        MappedByteBuffer buffer = map(pathname);
+        int valueBytes = floatingValueBytes(buffer, pathname);
+        int[] layerSizes = readLayerSizes(buffer);
+        Network network = new Network(layerSizes, readActivations(buffer, layerSizes), Kernels.DEFAULT, false);
+        network.setMSE(buffer.getDouble());
+        buffer.position(align(buffer.position()));
+        for(int layer = 1; layer < layerSizes.length; layer++){
+            readValues(buffer, valueBytes, network.weights[layer]);
+            readValues(buffer, valueBytes, network.biases[layer]);
+        }
+        return network;
+    }
+
+    /**
+     * Converts a text checkpoint written by Network.saveNetwork into a binary checkpoint
+     * @param textPathname text checkpoint to read
+     * @param binaryPathname where to write the binary checkpoint
+     * @param singlePrecision whether to store the values as float32 instead of float64
+     * @throws IOException in the case a file cannot be read or written
+     */
+    public static void convertTextToBinary(String textPathname, String binaryPathname, boolean singlePrecision)
+            throws IOException {
+        write(Network.loadNetwork(textPathname), binaryPathname, singlePrecision);
+    }
+
+    /**
+     * @return number of weights and biases of a network
+     */
+    private static long values(int[] layerSizes){
+        long values = 0;
+        for(int layer = 1; layer < layerSizes.length; layer++){
+            values += (long) layerSizes[layer] * layerSizes[layer - 1] + layerSizes[layer];
+        }
+        return values;
+    }
+
+    /**
+     * Allocates the whole file and fills in the header
+     * @param payloadBytes size of the values after the header
+     */
+    private static ByteBuffer header(int[] layerSizes, Activation[] activations, int valueBytes, long payloadBytes,
+                                     double mse){
+        int layers = layerSizes.length;
+        int headerBytes = align(16 + 4 * layers + 4 * (layers - 1) + 8);
+        long total = headerBytes + payloadBytes + 4;
+        if(total > Integer.MAX_VALUE) throw new IllegalArgumentException("Network too large for a checkpoint");
+        ByteBuffer buffer = ByteBuffer.allocate((int) total).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(valueBytes).putInt(layers);
+        for(int size : layerSizes){
+            buffer.putInt(size);
+        }
+        for(int layer = 1; layer < layers; layer++){
+            buffer.putInt(activations[layer].ordinal());
+        }
+        buffer.putDouble(mse);
+        buffer.position(headerBytes);
+        return buffer;
+    }
+
+    /**
+     * Appends the checksum, writes the buffer to the file and forces it to the disk, so a file renamed after this
+     * returns is complete even after a power loss
+     */
+    private static void finish(ByteBuffer buffer, String pathname) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        try(FileChannel channel = FileChannel.open(Paths.get(pathname), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Maps the file and checks its magic number, version and checksum.
+     * The returned buffer is positioned after the value size field.
+     */
+    private static MappedByteBuffer map(String pathname) throws IOException {
+        Path path = Paths.get(pathname);
+        MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            if(channel.size() < 28 || channel.size() > Integer.MAX_VALUE){
+                throw new IOException("Not a network checkpoint: " + pathname);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int end = buffer.limit() - 4;
+        if(buffer.getInt(0) != MAGIC) throw new IOException("Not a network checkpoint: " + pathname);
+        if(buffer.getInt(4) != VERSION){
+            throw new IOException("Unsupported checkpoint version " + buffer.getInt(4) + ": " + pathname);
+        }
+        int valueBytes = buffer.getInt(8);
+        if(valueBytes != FLOAT64 && valueBytes != FLOAT32 && valueBytes != INT8){
+            throw new IOException("Unsupported value size " + valueBytes + ": " + pathname);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(0).limit(end));
+        if(buffer.getInt(end) != (int) crc.getValue()) throw new IOException("Checksum mismatch: " + pathname);
+        buffer.position(12);
+        buffer.limit(end);
+        return buffer;
+    }
+
+    /**
+     * @return value size of a float64 or float32 checkpoint
+     * @throws IOException in the case the checkpoint holds int8 values, which only QuantizedNetwork reads
+     */
+    private static int floatingValueBytes(ByteBuffer buffer, String pathname) throws IOException {
+        int valueBytes = buffer.getInt(8);
+        if(valueBytes == INT8) throw new IOException("int8 checkpoint, load it with QuantizedNetwork: " + pathname);
+        return valueBytes;
+    }
+
+    private static int[] readLayerSizes(ByteBuffer buffer) throws IOException {
+        int layers = buffer.getInt();
+        if(layers < 2 || layers > (buffer.remaining() - 8) / 8) throw new IOException("Corrupt checkpoint header");
+        int[] layerSizes = new int[layers];
+        for(int layer = 0; layer < layers; layer++){
+            layerSizes[layer] = buffer.getInt();
+        }
+        return layerSizes;
+    }
+
+    private static Activation[] readActivations(ByteBuffer buffer, int[] layerSizes) throws IOException {
+        Activation[] all = Activation.values();
+        Activation[] activations = new Activation[layerSizes.length - 1];
+        for(int i = 0; i < activations.length; i++){
+            int ordinal = buffer.getInt();
+            if(ordinal < 0 || ordinal >= all.length) throw new IOException("Unknown activation " + ordinal);
+            activations[i] = all[ordinal];
+        }
+        return activations;
+    }
+
+    private static void readValues(ByteBuffer buffer, int valueBytes, double[] values){
+        if(valueBytes == FLOAT64){
+            buffer.asDoubleBuffer().get(values);
+        }
+        else{
+            for(int i = 0; i < values.length; i++){
+                values[i] = buffer.getFloat(buffer.position() + i * FLOAT32);
+            }
+        }
+        buffer.position(buffer.position() + values.length * valueBytes);
+    }
+
+    private static void putValues(ByteBuffer buffer, int valueBytes, double[] values){
+        if(valueBytes == FLOAT64){
+            buffer.asDoubleBuffer().put(values);
+        }
+        else{
+            for(int i = 0; i < values.length; i++){
+                buffer.putFloat(buffer.position() + i * FLOAT32, (float) values[i]);
+            }
+        }
+        buffer.position(buffer.position() + values.length * valueBytes);
+    }
+
+    private static void putFloats(ByteBuffer buffer, float[] values){
+        buffer.asFloatBuffer().put(values);
+        buffer.position(buffer.position() + values.length * FLOAT32);
+    }
+
+    private static void getFloats(ByteBuffer buffer, float[] values){
+        buffer.asFloatBuffer().get(values);
+        buffer.position(buffer.position() + values.length * FLOAT32);
+    }
+
+    /**
+     * Rounds up to a multiple of 4 bytes so the floats after int8 weights start aligned
+     */
+    private static int pad(int bytes){
+        return (bytes + 3) & ~3;
+    }
+
+    /**
+     * Rounds up to a multiple of 8 bytes so the values start aligned
+     */
+    private static int align(int bytes){
+        return (bytes + 7) & ~7;
+    }
+
+    /**
+     * Converts a text checkpoint to a binary one and compares both formats' size and load time.
+     * Usage: Checkpoint text_checkpoint binary_checkpoint [float32]
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2){
+            System.out.println("Usage: Checkpoint text_checkpoint binary_checkpoint [float32]");
+            return;
+        }
+        long start = System.nanoTime();
+        convertTextToBinary(args[0], args[1], args.length > 2 && args[2].equals("float32"));
+        System.out.printf("Converted in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+        start = System.nanoTime();
+        Network.loadNetwork(args[0]);
+        long text = System.nanoTime() - start;
+        start = System.nanoTime();
+        Network.loadBinary(args[1]);
+        long binary = System.nanoTime() - start;
+        System.out.printf("text: %d bytes, loaded in %d ms%n", Paths.get(args[0]).toFile().length(), text / 1_000_000);
+        System.out.printf("binary: %d bytes, loaded in %d ms%n", Paths.get(args[1]).toFile().length(), binary / 1_000_000);
+    }
+}
@@ -0,0 +1,224 @@
+package nn.DenisAleksandrov;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes binary checkpoints of a network in the background while it trains.
+ *
+ * Trainer calls afterUpdate after every weight update. Once everyUpdates updates or everyMillis milliseconds
+ * have passed since the last checkpoint, the weights and biases are copied into a snapshot buffer on the
+ * training thread and a background thread writes the snapshot with Checkpoint. The file is written under a
+ * temporary name and renamed when complete, so a crash never leaves a half-written checkpoint behind.
+ * Only the newest keep checkpoints are kept.
+ *
+ * If the previous checkpoint is still being written when the next one is due, the next one is put off until the
+ * writer is free instead of blocking training. A failed write is reported by the next checkpointNow or close.
+ */
+public class Checkpointer implements AutoCloseable {
+    /**
+     * How many updates pass between two looks at the clock
+     */
+    private static final int CLOCK_INTERVAL = 256;
+
+    private final Network aNetwork;
+    private final Path aDirectory;
+    private final String aPrefix;
+    private final long aEveryUpdates;
+    private final long aEveryNanos;
+    private final int aKeep;
+    private final ExecutorService aWriter;
+    /**
+     * Checkpoints written so far, oldest first, at most aKeep of them
+     */
+    private final ArrayDeque<Path> aWritten = new ArrayDeque<>();
+    private final double[][] aWeights;
+    private final double[][] aBiases;
+    private long aUpdates;
+    private long aNextDue;
+    private long aLastNanos;
+    private Future<?> aPending;
+    private IOException aFailure;
+
+    /**
+     * @param pNetwork network to checkpoint
+     * @param pDirectory directory to write the checkpoints to, created if missing
+     * @param pPrefix file name prefix of the checkpoints, followed by the update count and ".ckpt"
+     * @param pEveryUpdates number of updates between checkpoints, 0 or less to not checkpoint by count
+     * @param pEveryMillis milliseconds between checkpoints, 0 or less to not checkpoint by time
+     * @param pKeep number of most recent checkpoints to keep, older ones are deleted
+     * @throws IOException in the case the directory cannot be created
+     */
+    public Checkpointer(Network pNetwork, String pDirectory, String pPrefix, long pEveryUpdates, long pEveryMillis,
+                        int pKeep) throws IOException {
+        assert pNetwork != null;
+        aNetwork = pNetwork;
+        aDirectory = Files.createDirectories(Paths.get(pDirectory));
+        aPrefix = pPrefix;
+        aEveryUpdates = pEveryUpdates > 0 ? pEveryUpdates : Long.MAX_VALUE;
+        aEveryNanos = pEveryMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(pEveryMillis) : Long.MAX_VALUE;
+        aKeep = Math.max(1, pKeep);
+        aWeights = new double[pNetwork.NETWORK_SIZE][];
+        aBiases = new double[pNetwork.NETWORK_SIZE][];
+        for(int layer = 1; layer < pNetwork.NETWORK_SIZE; layer++){
+            aWeights[layer] = new double[pNetwork.weights[layer].length];
+            aBiases[layer] = new double[pNetwork.biases[layer].length];
+        }
+        aNextDue = aEveryUpdates;
+        aLastNanos = System.nanoTime();
+        aWriter = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Counts one weight update and starts a checkpoint if one is due
+     */
+    public void afterUpdate(){
+        afterUpdates(1);
+    }
+
+    /**
+     * Counts pCount weight updates and starts a checkpoint if one is due
+     * @param pCount number of updates since the last call
+     */
+    public void afterUpdates(int pCount){
+        long before = aUpdates;
+        aUpdates += pCount;
+        boolean due = aUpdates >= aNextDue;
+        if(!due && aEveryNanos != Long.MAX_VALUE && before / CLOCK_INTERVAL != aUpdates / CLOCK_INTERVAL){
+            due = System.nanoTime() - aLastNanos >= aEveryNanos;
+        }
+        if(due && (aPending == null || aPending.isDone())){
+            start();
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the current weights and waits until it and any earlier one are on disk
+     * @return path of the checkpoint
+     * @throws IOException in the case this or an earlier checkpoint could not be written
+     */
+    public Path checkpointNow() throws IOException {
+        await();
+        Path path = start();
+        await();
+        return path;
+    }
+
+    /**
+     * @return path of the newest complete checkpoint, null if none has been written yet
+     */
+    public synchronized Path latest(){
+        return aWritten.peekLast();
+    }
+
+    /**
+     * @return number of updates counted so far
+     */
+    public long getUpdates(){
+        return aUpdates;
+    }
+
+    /**
+     * Waits for the checkpoint being written and stops the writer thread
+     * @throws IOException in the case a checkpoint could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        try{
+            await();
+        }
+        finally{
+            aWriter.shutdown();
+        }
+    }
+
+    /**
+     * Copies the weights and biases into the snapshot buffers and hands them to the writer
+     */
+    private Path start(){
+        for(int layer = 1; layer < aNetwork.NETWORK_SIZE; layer++){
+            System.arraycopy(aNetwork.weights[layer], 0, aWeights[layer], 0, aWeights[layer].length);
+            System.arraycopy(aNetwork.biases[layer], 0, aBiases[layer], 0, aBiases[layer].length);
+        }
+        double mse = aNetwork.getMSE();
+        Path path = aDirectory.resolve(String.format("%s-%012d.ckpt", aPrefix, aUpdates));
+        long updates = aUpdates;
+        aPending = aWriter.submit(() -> write(path, mse, updates));
+        aNextDue = aUpdates + aEveryUpdates;
+        aLastNanos = System.nanoTime();
+        return path;
+    }
+
+    /**
+     * Runs on the writer thread: writes the snapshot to a temporary file, which Checkpoint forces to the disk,
+     * renames it and applies the retention
+     */
+    private void write(Path path, double mse, long updates){
+        TrainingEvents.CheckpointWrite event = new TrainingEvents.CheckpointWrite();
+        event.begin();
+        event.path = path.toString();
+        event.updates = updates;
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try{
+            Checkpoint.write(aNetwork.LAYER_SIZES, aNetwork.activations, aWeights, aBiases, mse, temporary.toString());
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            event.bytes = Files.size(path);
+            event.succeeded = true;
+            Path old = null;
+            synchronized(this){
+                aWritten.remove(path);
+                aWritten.addLast(path);
+                if(aWritten.size() > aKeep) old = aWritten.removeFirst();
+            }
+            if(old != null) Files.deleteIfExists(old);
+        }
+        catch(IOException e){
+            synchronized(this){
+                aFailure = e;
+            }
+            try{
+                Files.deleteIfExists(temporary);
+            }
+            catch(IOException ignored){
+            }
+        }
+        event.commit();
+    }
+
+    /**
+     * Waits for the pending checkpoint and rethrows the first failure since the last call
+     */
+    private void await() throws IOException {
+        if(aPending != null){
+            try{
+                aPending.get();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing a checkpoint", e);
+            }
+            catch(ExecutionException e){
+                throw new IOException("Checkpoint writer failed", e.getCause());
+            }
+        }
+        IOException failure;
+        synchronized(this){
+            failure = aFailure;
+            aFailure = null;
+        }
+        if(failure != null) throw failure;
+    }
+}
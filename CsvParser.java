@@ -0,0 +1,481 @@
+package nn.DenisAleksandrov;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses recordings of samples straight from the bytes of a memory-mapped file.
+ *
+ * Every non-empty line is one sample: inputWidth inputs followed by targetWidth targets, integers or decimals
+ * separated by any mix of commas, semicolons, spaces and tabs. Lines starting with '#' are comments, except that a
+ * first line of the form "# inputs=4 targets=12" declares the widths of the file.
+ *
+ * The file is split into line-aligned chunks that are parsed on the threads of a ForkJoinPool in two passes:
+ * the first counts the samples of every chunk so each one knows where its rows start, the second parses the
+ * numbers into the flat matrices of a Dataset. No String or array is allocated per line or per number.
+ */
+public final class CsvParser {
+    /**
+     * Smallest chunk worth handing to a thread
+     */
+    private static final long MIN_CHUNK = 1 << 20;
+    /**
+     * Largest chunk, has to fit in one mapping
+     */
+    private static final long MAX_CHUNK = 1 << 30;
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final Pattern SCHEMA = Pattern.compile("inputs\\s*=\\s*(\\d+).*targets\\s*=\\s*(\\d+)");
+
+    static{
+        POWERS_OF_TEN[0] = 1;
+        for(int i = 1; i < POWERS_OF_TEN.length; i++){
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private CsvParser(){
+    }
+
+    /**
+     * Parses a recording with the widths declared in its first line, or the data harvester's widths
+     * if it has no such line
+     * @param pathname filepath of the recording
+     * @return the recording's samples
+     * @throws IOException in the case the file cannot be read or a line does not match the widths
+     */
+    public static Dataset parse(String pathname) throws IOException {
+        int[] widths = readSchema(pathname);
+        if(widths == null) widths = new int[]{Dataset.HARVESTER_INPUT_WIDTH, Dataset.HARVESTER_TARGET_WIDTH};
+        return parse(pathname, widths[0], widths[1], Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Parses a recording for a network, each line holding the network's input size inputs followed by its
+     * output size targets
+     * @param pathname filepath of the recording
+     * @param network network the samples are meant for
+     * @return the recording's samples
+     * @throws IOException in the case the file cannot be read or a line does not match the network
+     */
+    public static Dataset parse(String pathname, Network network) throws IOException {
+        return parse(pathname, network.INPUT_SIZE, network.OUTPUT_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Parses a recording with the given widths
+     * @param pathname filepath of the recording
+     * @param inputWidth number of inputs at the start of each line
+     * @param targetWidth number of targets after them
+     * @param workers number of threads to parse on
+     * @return the recording's samples
+     * @throws IOException in the case the file cannot be read, a line does not match the widths, or the file
+     * declares different widths
+     */
+    public static Dataset parse(String pathname, int inputWidth, int targetWidth, int workers) throws IOException {
+        int[] declared = readSchema(pathname);
+        if(declared != null && (declared[0] != inputWidth || declared[1] != targetWidth)){
+            throw new IOException(pathname + " declares " + declared[0] + " inputs and " + declared[1]
+                    + " targets, expected " + inputWidth + " and " + targetWidth);
+        }
+        try(FileChannel channel = FileChannel.open(Paths.get(pathname), StandardOpenOption.READ)){
+            long[] bounds = split(channel, Math.max(1, workers));
+            int chunks = bounds.length - 1;
+            Chunk[] parts = new Chunk[chunks];
+            for(int i = 0; i < chunks; i++){
+                parts[i] = new Chunk(channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]),
+                        bounds[i], inputWidth, targetWidth);
+            }
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(workers, chunks)));
+            try{
+                List<Callable<Void>> counts = new ArrayList<>(chunks);
+                for(Chunk part : parts){
+                    counts.add(() -> {
+                        part.count();
+                        return null;
+                    });
+                }
+                run(pool, counts);
+                long rows = 0;
+                for(Chunk part : parts){
+                    part.firstRow = (int) rows;
+                    rows += part.rows;
+                }
+                if(rows * Math.max(inputWidth, targetWidth) > Integer.MAX_VALUE - 8){
+                    throw new IOException(pathname + " has too many samples for one data set");
+                }
+                double[] inputs = new double[(int) rows * inputWidth];
+                double[] targets = new double[(int) rows * targetWidth];
+                List<Callable<Void>> parses = new ArrayList<>(chunks);
+                for(Chunk part : parts){
+                    parses.add(() -> {
+                        part.parse(inputs, targets);
+                        return null;
+                    });
+                }
+                run(pool, parses);
+                return new Dataset(inputs, targets, inputWidth, targetWidth);
+            }
+            finally{
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Opens a recording as a SampleSource that parses it window by window, for recordings larger than the heap.
+     * Only one window of the file is mapped at a time and nothing is allocated per sample.
+     * @param pathname filepath of the recording
+     * @param inputWidth number of inputs at the start of each line
+     * @param targetWidth number of targets after them
+     * @return source of the recording's samples, has to be closed
+     * @throws IOException in the case the file cannot be opened or declares different widths
+     */
+    public static SampleSource stream(String pathname, int inputWidth, int targetWidth) throws IOException {
+        int[] declared = readSchema(pathname);
+        if(declared != null && (declared[0] != inputWidth || declared[1] != targetWidth)){
+            throw new IOException(pathname + " declares " + declared[0] + " inputs and " + declared[1]
+                    + " targets, expected " + inputWidth + " and " + targetWidth);
+        }
+        return new Stream(FileChannel.open(Paths.get(pathname), StandardOpenOption.READ), inputWidth, targetWidth);
+    }
+
+    /**
+     * Opens a recording as a SampleSource with the widths it declares, or the data harvester's widths
+     * @param pathname filepath of the recording
+     * @return source of the recording's samples, has to be closed
+     * @throws IOException in the case the file cannot be opened
+     */
+    public static SampleSource stream(String pathname) throws IOException {
+        int[] widths = readSchema(pathname);
+        if(widths == null) widths = new int[]{Dataset.HARVESTER_INPUT_WIDTH, Dataset.HARVESTER_TARGET_WIDTH};
+        return stream(pathname, widths[0], widths[1]);
+    }
+
+    /**
+     * Reads the "# inputs=N targets=M" line at the start of a file
+     * @return {N, M}, or null if the file does not start with such a line
+     */
+    private static int[] readSchema(String pathname) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(256);
+        try(FileChannel channel = FileChannel.open(Paths.get(pathname), StandardOpenOption.READ)){
+            while(head.hasRemaining() && channel.read(head) > 0){
+            }
+        }
+        head.flip();
+        int end = 0;
+        while(end < head.limit() && head.get(end) != '\n'){
+            end++;
+        }
+        if(end == 0 || head.get(0) != '#') return null;
+        String line = new String(head.array(), 0, end, StandardCharsets.US_ASCII);
+        Matcher m = SCHEMA.matcher(line);
+        if(!m.find()) return null;
+        return new int[]{Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))};
+    }
+
+    /**
+     * Splits the file into about four chunks per worker, each ending right after a line break
+     * @return chunk boundaries, chunk i covers bounds[i] .. bounds[i + 1] - 1
+     */
+    private static long[] split(FileChannel channel, int workers) throws IOException {
+        long size = channel.size();
+        long chunk = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, size / (4L * workers) + 1));
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long last = 0;
+        while(size - last > chunk){
+            long pos = last + chunk;
+            long bound = size;
+            search:
+            while(pos < size){
+                probe.clear();
+                int read = channel.read(probe, pos);
+                if(read <= 0) break;
+                for(int i = 0; i < read; i++){
+                    if(probe.get(i) == '\n'){
+                        bound = pos + i + 1;
+                        break search;
+                    }
+                }
+                pos += read;
+            }
+            if(bound >= size) break;
+            bounds.add(bound);
+            last = bound;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for(int i = 0; i < result.length; i++){
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the tasks on the pool and rethrows the first IOException one of them threw
+     */
+    private static void run(ForkJoinPool pool, List<Callable<Void>> tasks) throws IOException {
+        for(Future<Void> result : pool.invokeAll(tasks)){
+            try{
+                result.get();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while parsing", e);
+            }
+            catch(ExecutionException e){
+                // the pool wraps what the task threw, possibly several times
+                for(Throwable cause = e.getCause(); cause != null; cause = cause.getCause()){
+                    if(cause instanceof IOException) throw (IOException) cause;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private static boolean isSeparator(byte c){
+        return c == ',' || c == ' ' || c == '\t' || c == ';';
+    }
+
+    /**
+     * One line-aligned part of the file and the parser state of the thread working on it
+     */
+    private static final class Chunk {
+        private final MappedByteBuffer bytes;
+        private final long offset;
+        private final int inputWidth;
+        private final int targetWidth;
+        private int rows;
+        private int firstRow;
+        private int pos;
+
+        Chunk(MappedByteBuffer bytes, long offset, int inputWidth, int targetWidth){
+            this.bytes = bytes;
+            this.offset = offset;
+            this.inputWidth = inputWidth;
+            this.targetWidth = targetWidth;
+        }
+
+        /**
+         * Counts the lines that are neither blank nor comments
+         */
+        void count(){
+            int n = 0;
+            boolean content = false;
+            boolean comment = false;
+            for(int i = 0, end = bytes.limit(); i < end; i++){
+                byte c = bytes.get(i);
+                if(c == '\n'){
+                    if(content) n++;
+                    content = false;
+                    comment = false;
+                }
+                else if(!content && !comment){
+                    if(c == '#') comment = true;
+                    else if(c != ' ' && c != '\t' && c != '\r') content = true;
+                }
+            }
+            if(content) n++;
+            rows = n;
+        }
+
+        /**
+         * Parses the chunk's samples into the rows starting at firstRow
+         */
+        void parse(double[] inputs, double[] targets) throws IOException {
+            pos = 0;
+            int row = firstRow;
+            while(nextRow(inputs, targets, row)){
+                row++;
+            }
+        }
+
+        /**
+         * Skips blank and comment lines and parses the next sample into the given row
+         * @return false if the chunk has no more samples
+         */
+        boolean nextRow(double[] inputs, double[] targets, int row) throws IOException {
+            int end = bytes.limit();
+            while(pos < end){
+                byte c = bytes.get(pos);
+                if(c == '\n' || c == '\r' || c == ' ' || c == '\t'){
+                    pos++;
+                    continue;
+                }
+                if(c == '#'){
+                    while(pos < end && bytes.get(pos) != '\n'){
+                        pos++;
+                    }
+                    continue;
+                }
+                for(int col = 0; col < inputWidth; col++){
+                    inputs[row * inputWidth + col] = nextValue(end);
+                }
+                for(int col = 0; col < targetWidth; col++){
+                    targets[row * targetWidth + col] = nextValue(end);
+                }
+                skipSeparators(end);
+                if(pos < end && bytes.get(pos) != '\n' && bytes.get(pos) != '\r'){
+                    throw new IOException("More than " + (inputWidth + targetWidth) + " values on the line at byte "
+                            + (offset + pos));
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void skipSeparators(int end){
+            while(pos < end && isSeparator(bytes.get(pos))){
+                pos++;
+            }
+        }
+
+        /**
+         * Parses the next number of the current line.
+         * Numbers of at most 15 significant digits and 22 decimals are converted with one exact division,
+         * which rounds the same way as Double.parseDouble.
+         */
+        private double nextValue(int end) throws IOException {
+            skipSeparators(end);
+            int start = pos;
+            boolean negative = false;
+            if(pos < end && (bytes.get(pos) == '-' || bytes.get(pos) == '+')){
+                negative = bytes.get(pos) == '-';
+                pos++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean any = false;
+            byte c;
+            while(pos < end && (c = bytes.get(pos)) >= '0' && c <= '9'){
+                mantissa = mantissa * 10 + (c - '0');
+                if(mantissa != 0) digits++;
+                any = true;
+                pos++;
+            }
+            if(pos < end && bytes.get(pos) == '.'){
+                pos++;
+                while(pos < end && (c = bytes.get(pos)) >= '0' && c <= '9'){
+                    mantissa = mantissa * 10 + (c - '0');
+                    if(mantissa != 0) digits++;
+                    exponent--;
+                    any = true;
+                    pos++;
+                }
+            }
+            if(!any){
+                throw new IOException("Expected " + (inputWidth + targetWidth) + " numbers on the line at byte "
+                        + (offset + start));
+            }
+            if(pos < end && (c = bytes.get(pos)) != '\n' && c != '\r' && !isSeparator(c)){
+                return slowValue(start, end);
+            }
+            if(digits > 15 || exponent < -22) return slowValue(start, end);
+            double value = mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+
+        /**
+         * Falls back to Double.parseDouble for numbers that do not fit the fast path, allocates a String
+         */
+        private double slowValue(int start, int end) throws IOException {
+            pos = start;
+            while(pos < end && !isSeparator(bytes.get(pos)) && bytes.get(pos) != '\n' && bytes.get(pos) != '\r'){
+                pos++;
+            }
+            byte[] text = new byte[pos - start];
+            bytes.get(start, text);
+            try{
+                return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+            }
+            catch(NumberFormatException e){
+                throw new IOException("Not a number at byte " + (offset + start), e);
+            }
+        }
+    }
+
+    /**
+     * SampleSource over a file, maps up to WINDOW bytes ending on a line break at a time
+     */
+    private static final class Stream implements SampleSource {
+        private static final long WINDOW = 64L << 20;
+
+        private final FileChannel channel;
+        private final int inputWidth;
+        private final int targetWidth;
+        private final long size;
+        private long windowStart;
+        private Chunk window;
+
+        Stream(FileChannel channel, int inputWidth, int targetWidth) throws IOException {
+            this.channel = channel;
+            this.inputWidth = inputWidth;
+            this.targetWidth = targetWidth;
+            this.size = channel.size();
+        }
+
+        @Override
+        public int getInputWidth(){
+            return inputWidth;
+        }
+
+        @Override
+        public int getTargetWidth(){
+            return targetWidth;
+        }
+
+        @Override
+        public int read(double[] inputs, double[] targets, int max) throws IOException {
+            int count = 0;
+            while(count < max){
+                if(window != null && window.nextRow(inputs, targets, count)){
+                    count++;
+                    continue;
+                }
+                if(!nextWindow()) break;
+            }
+            return count;
+        }
+
+        /**
+         * Maps the part of the file after the current window
+         * @return false at the end of the file
+         */
+        private boolean nextWindow() throws IOException {
+            if(window != null) windowStart += window.bytes.limit();
+            if(windowStart >= size) return false;
+            long length = Math.min(WINDOW, size - windowStart);
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+            if(windowStart + length < size){
+                int end = (int) length;
+                while(end > 0 && bytes.get(end - 1) != '\n'){
+                    end--;
+                }
+                if(end == 0) throw new IOException("Line longer than " + WINDOW + " bytes at byte " + windowStart);
+                bytes.limit(end);
+            }
+            window = new Chunk(bytes, windowStart, inputWidth, targetWidth);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package nn.DenisAleksandrov;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A data set of input and target vectors stored in two flat row-major matrices:
+ * the inputs of sample i are inputs[i * INPUT_WIDTH .. (i + 1) * INPUT_WIDTH - 1], same for the targets.
+ *
+ * load parses a recording with CsvParser and keeps a binary cache file next to it (pathname + ".cache").
+ * The cache is written the first time a recording is loaded and used as long as the recording's size and
+ * modification time match the ones stored in it, so an edited recording is parsed again automatically.
+ *
+ * Cache file format, all values little-endian:
+ * int magic "FFDS"
+ * int version
+ * int SIZE, int INPUT_WIDTH, int TARGET_WIDTH, int padding
+ * long size of the recording in bytes
+ * long modification time of the recording in milliseconds
+ * double[SIZE * INPUT_WIDTH] inputs
+ * double[SIZE * TARGET_WIDTH] targets
+ */
+public class Dataset {
+    /**
+     * "FFDS" read as a little-endian int
+     */
+    static final int MAGIC = 0x53444646;
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 40;
+
+    /**
+     * Number of inputs and targets the data harvester records per line, used for recordings that do not
+     * declare their widths
+     */
+    public static final int HARVESTER_INPUT_WIDTH = 4;
+    public static final int HARVESTER_TARGET_WIDTH = 12;
+
+    /**
+     * The number of samples
+     */
+    public final int SIZE;
+    /**
+     * The number of values in each input vector
+     */
+    public final int INPUT_WIDTH;
+    /**
+     * The number of values in each target vector
+     */
+    public final int TARGET_WIDTH;
+
+    final double[] inputs;
+    final double[] targets;
+
+    /**
+     * @pre inputs.length % inputWidth == 0 and targets.length == inputs.length / inputWidth * targetWidth
+     * @param inputs flat row-major matrix of input vectors
+     * @param targets flat row-major matrix of target vectors
+     * @param inputWidth number of values in each input vector
+     * @param targetWidth number of values in each target vector
+     */
+    public Dataset(double[] inputs, double[] targets, int inputWidth, int targetWidth){
+        assert inputs.length % inputWidth == 0 && targets.length == inputs.length / inputWidth * targetWidth;
+        this.inputs = inputs;
+        this.targets = targets;
+        INPUT_WIDTH = inputWidth;
+        TARGET_WIDTH = targetWidth;
+        SIZE = inputs.length / inputWidth;
+    }
+
+    /**
+     * Copies jagged sample arrays, as returned by Trainer.getDataFromFile, into a data set
+     * @pre input.length == target.length > 0 and every row of a matrix has the same length
+     * @param input nxm matrix of input values
+     * @param target nxw matrix of target values
+     * @return data set of the n samples
+     */
+    public static Dataset fromArrays(double[][] input, double[][] target){
+        assert input.length == target.length && input.length > 0;
+        int inputWidth = input[0].length;
+        int targetWidth = target[0].length;
+        double[] inputs = new double[input.length * inputWidth];
+        double[] targets = new double[target.length * targetWidth];
+        for(int i = 0; i < input.length; i++){
+            System.arraycopy(input[i], 0, inputs, i * inputWidth, inputWidth);
+            System.arraycopy(target[i], 0, targets, i * targetWidth, targetWidth);
+        }
+        return new Dataset(inputs, targets, inputWidth, targetWidth);
+    }
+
+    /**
+     * Random distance readings from 0 to 40 labelled as the data harvester labels them: FAR from 20 on,
+     * NEAR above 5, BLOCKING otherwise. For reports and demos that run without a recording.
+     * @param samples number of samples
+     * @param seed seed of the readings
+     * @return samples of HARVESTER_INPUT_WIDTH readings and HARVESTER_TARGET_WIDTH targets
+     */
+    static Dataset harvesterSample(int samples, long seed){
+        Random random = new Random(seed);
+        double[] inputs = new double[samples * HARVESTER_INPUT_WIDTH];
+        double[] targets = new double[samples * HARVESTER_TARGET_WIDTH];
+        for(int i = 0; i < samples; i++){
+            for(int sensor = 0; sensor < HARVESTER_INPUT_WIDTH; sensor++){
+                int distance = random.nextInt(41);
+                inputs[i * HARVESTER_INPUT_WIDTH + sensor] = distance;
+                int state = distance >= 20 ? SensorDecoder.FAR : distance > 5 ? SensorDecoder.NEAR
+                        : SensorDecoder.BLOCKING;
+                targets[i * HARVESTER_TARGET_WIDTH + sensor * 3 + state] = 1;
+            }
+        }
+        return new Dataset(inputs, targets, HARVESTER_INPUT_WIDTH, HARVESTER_TARGET_WIDTH);
+    }
+
+    /**
+     * @return a copy of the data set as jagged arrays, index 0 holds the inputs and index 1 the targets
+     */
+    public double[][][] toArrays(){
+        double[][][] arrays = new double[2][SIZE][];
+        for(int i = 0; i < SIZE; i++){
+            arrays[0][i] = Arrays.copyOfRange(inputs, i * INPUT_WIDTH, (i + 1) * INPUT_WIDTH);
+            arrays[1][i] = Arrays.copyOfRange(targets, i * TARGET_WIDTH, (i + 1) * TARGET_WIDTH);
+        }
+        return arrays;
+    }
+
+    /**
+     * Joins data sets of the same widths into one, in the order given
+     * @pre parts.length > 0
+     * @param parts data sets to join
+     * @return a new data set holding the samples of all parts
+     * @throws IllegalArgumentException if the parts have different widths
+     */
+    public static Dataset concat(Dataset... parts){
+        assert parts.length > 0;
+        int inputs = 0;
+        int targets = 0;
+        for(Dataset part : parts){
+            if(part.INPUT_WIDTH != parts[0].INPUT_WIDTH || part.TARGET_WIDTH != parts[0].TARGET_WIDTH){
+                throw new IllegalArgumentException("Data sets have different widths");
+            }
+            inputs += part.inputs.length;
+            targets += part.targets.length;
+        }
+        double[] joinedInputs = new double[inputs];
+        double[] joinedTargets = new double[targets];
+        inputs = 0;
+        targets = 0;
+        for(Dataset part : parts){
+            System.arraycopy(part.inputs, 0, joinedInputs, inputs, part.inputs.length);
+            System.arraycopy(part.targets, 0, joinedTargets, targets, part.targets.length);
+            inputs += part.inputs.length;
+            targets += part.targets.length;
+        }
+        return new Dataset(joinedInputs, joinedTargets, parts[0].INPUT_WIDTH, parts[0].TARGET_WIDTH);
+    }
+
+    /**
+     * Splits the samples at random into a training and a validation set
+     * @param validationFraction share of the samples to put in the validation set, from 0 to 1
+     * @param seed seed of the random split, the same seed gives the same split
+     * @return {training set, validation set}
+     */
+    public Dataset[] split(double validationFraction, long seed){
+        int[] order = new int[SIZE];
+        for(int i = 0; i < SIZE; i++){
+            order[i] = i;
+        }
+        shuffle(order, new Random(seed));
+        int validation = (int) Math.round(SIZE * Math.max(0, Math.min(1, validationFraction)));
+        return new Dataset[]{select(order, validation, SIZE), select(order, 0, validation)};
+    }
+
+    /**
+     * Fisher-Yates shuffle in place
+     * @param order array to shuffle
+     * @param random source of randomness
+     */
+    static void shuffle(int[] order, Random random){
+        for(int i = order.length - 1; i > 0; i--){
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+    }
+
+    /**
+     * Copies the samples order[from .. to - 1] into a new data set
+     */
+    private Dataset select(int[] order, int from, int to){
+        double[] selectedInputs = new double[(to - from) * INPUT_WIDTH];
+        double[] selectedTargets = new double[(to - from) * TARGET_WIDTH];
+        for(int i = from; i < to; i++){
+            System.arraycopy(inputs, order[i] * INPUT_WIDTH, selectedInputs, (i - from) * INPUT_WIDTH, INPUT_WIDTH);
+            System.arraycopy(targets, order[i] * TARGET_WIDTH, selectedTargets, (i - from) * TARGET_WIDTH,
+                    TARGET_WIDTH);
+        }
+        return new Dataset(selectedInputs, selectedTargets, INPUT_WIDTH, TARGET_WIDTH);
+    }
+
+    /**
+     * @return the flat input matrix, not a copy
+     */
+    public double[] getInputs(){
+        return inputs;
+    }
+
+    /**
+     * @return the flat target matrix, not a copy
+     */
+    public double[] getTargets(){
+        return targets;
+    }
+
+    /**
+     * Loads a recording, from its binary cache if the cache is up to date.
+     * Writes the cache after parsing the recording, a cache that cannot be written is skipped.
+     * @param pathname filepath of the recording
+     * @return the recording's samples, with the widths the recording declares or the data harvester's widths
+     * @throws IOException in the case that the recording cannot be read
+     */
+    public static Dataset load(String pathname) throws IOException {
+        return load(pathname, null);
+    }
+
+    /**
+     * Same as load(String) with the widths taken from the network the samples are meant for
+     * @param pathname filepath of the recording
+     * @param network network the samples are meant for, null to use the widths of the recording
+     * @return the recording's samples
+     * @throws IOException in the case that the recording cannot be read or does not match the network
+     */
+    public static Dataset load(String pathname, Network network) throws IOException {
+        TrainingEvents.DataLoad event = new TrainingEvents.DataLoad();
+        event.begin();
+        Path source = Paths.get(pathname);
+        Path cache = Paths.get(pathname + ".cache");
+        long size = Files.size(source);
+        long modified = Files.getLastModifiedTime(source).toMillis();
+        Dataset data = readCache(cache, size, modified);
+        if(data != null && (network == null
+                || data.INPUT_WIDTH == network.INPUT_SIZE && data.TARGET_WIDTH == network.OUTPUT_SIZE)){
+            data.loaded(event, pathname, cache, "cache");
+            return data;
+        }
+        data = network == null ? CsvParser.parse(pathname) : CsvParser.parse(pathname, network);
+        data.loaded(event, pathname, source, "parse");
+        try{
+            data.writeCache(cache, size, modified);
+        }
+        catch(IOException e){
+            // the cache only saves time, training can go on without it
+        }
+        return data;
+    }
+
+    /**
+     * Commits the data load event of this data set
+     * @param file file the samples were read from, the recording or its cache
+     */
+    private void loaded(TrainingEvents.DataLoad event, String path, Path file, String source) throws IOException {
+        if(event.shouldCommit()){
+            event.path = path;
+            event.samples = SIZE;
+            event.bytes = Files.size(file);
+            event.source = source;
+            event.commit();
+        }
+    }
+
+    /**
+     * Maps the cache and copies its matrices out
+     * @return the cached data set, null if the cache is missing, invalid or made from a different recording
+     */
+    private static Dataset readCache(Path cache, long sourceSize, long sourceModified) throws IOException {
+        if(!Files.isRegularFile(cache)) return null;
+        MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)){
+            if(channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) return null;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+        int size = buffer.getInt(8);
+        int inputWidth = buffer.getInt(12);
+        int targetWidth = buffer.getInt(16);
+        if(buffer.getLong(24) != sourceSize || buffer.getLong(32) != sourceModified) return null;
+        if(size < 0 || inputWidth <= 0 || targetWidth < 0) return null;
+        long values = (long) size * (inputWidth + targetWidth);
+        if(buffer.limit() != HEADER_BYTES + values * 8) return null;
+        double[] inputs = new double[size * inputWidth];
+        double[] targets = new double[size * targetWidth];
+        buffer.position(HEADER_BYTES);
+        buffer.asDoubleBuffer().get(inputs);
+        buffer.position(HEADER_BYTES + inputs.length * 8);
+        buffer.asDoubleBuffer().get(targets);
+        return new Dataset(inputs, targets, inputWidth, targetWidth);
+    }
+
+    /**
+     * Writes the data set to a cache file for a recording of the given size and modification time.
+     * The file is written under a temporary name and renamed, a crash cannot leave a truncated cache behind.
+     */
+    private void writeCache(Path cache, long sourceSize, long sourceModified) throws IOException {
+        long total = HEADER_BYTES + ((long) inputs.length + targets.length) * 8;
+        if(total > Integer.MAX_VALUE) return;
+        ByteBuffer buffer = ByteBuffer.allocate((int) total).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(SIZE).putInt(INPUT_WIDTH).putInt(TARGET_WIDTH).putInt(0);
+        buffer.putLong(sourceSize).putLong(sourceModified);
+        buffer.asDoubleBuffer().put(inputs);
+        buffer.position(HEADER_BYTES + inputs.length * 8);
+        buffer.asDoubleBuffer().put(targets);
+        buffer.position(0);
+        Path temporary = cache.resolveSibling(cache.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+            // on the disk before the rename, or a power loss could leave the cache's name on a truncated file
+            channel.force(true);
+        }
+        Files.move(temporary, cache, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,405 @@
+package nn.DenisAleksandrov;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Bounded cache of inference results in front of a model, for control loops that feed the same sensor readings
+ * tick after tick, e.g. while the robot idles or follows a wall.
+ *
+ * Every input is quantized to a long with a step per input: x is looked up as round(x / step), and a miss feeds the
+ * quantized input round(x / step) * step through the model, so all inputs of a bucket get the same outputs whatever
+ * the order they come in. A step of 1 keeps the integer distances of the data harvester exact, a step of 0 compares
+ * the exact double values. The keys, outputs and the open addressing index are primitive arrays allocated once,
+ * a lookup neither boxes nor allocates. When full, CLOCK picks the entry to evict: the hand skips and clears
+ * entries hit since it last passed them and evicts the first one that was not.
+ *
+ * Before every lookup the model's getVersion is compared with the version the entries were computed with, so
+ * training the model empties the cache on the next call; setModel swaps in a reloaded model and empties it too.
+ * All methods are thread safe, lookups take a lock but the model runs outside of it.
+ */
+public class InferenceCache implements InferenceModel {
+    /**
+     * Model whose outputs are cached
+     */
+    private InferenceModel model;
+
+    private final int inputSize;
+    private final int outputSize;
+    private final int capacity;
+
+    /**
+     * 1 / step of every input, 0 for exact keys
+     */
+    private final double[] inverseSteps;
+    private final double[] steps;
+
+    /**
+     * keys[slot * inputSize + i]: quantized input i of the entry in slot
+     */
+    private final long[] keys;
+    private final int[] hashes;
+    /**
+     * values[slot * outputSize + i]: output i of the entry in slot
+     */
+    private final double[] values;
+    /**
+     * CLOCK reference bits, set when an entry is hit and cleared when the hand passes it
+     */
+    private final boolean[] referenced;
+    /**
+     * Linear probing index of the slots, slot + 1 or 0 for an empty bucket, at most half full
+     */
+    private final int[] table;
+
+    private int size;
+    private int hand;
+    /**
+     * Model version the entries were computed with
+     */
+    private long version;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * Per-thread quantized key and quantized input of a lookup, and the outputs of think
+     */
+    private final ThreadLocal<long[]> keyScratch;
+    private final ThreadLocal<double[]> inputScratch;
+    private final ThreadLocal<double[]> outputScratch;
+
+    /**
+     * @param model model whose outputs to cache
+     * @param capacity largest number of entries
+     * @param step quantization step of every input, 0 for exact keys
+     */
+    public InferenceCache(InferenceModel model, int capacity, double step){
+        this(model, capacity, filled(model.getInputSize(), step));
+    }
+
+    /**
+     * @pre steps.length == model.getInputSize() and every step >= 0
+     * @param model model whose outputs to cache
+     * @param capacity largest number of entries
+     * @param steps quantization step of each input, 0 for an exact key
+     */
+    public InferenceCache(InferenceModel model, int capacity, double[] steps){
+        if(capacity < 1 || capacity > 1 << 28 || steps.length != model.getInputSize()){
+            throw new IllegalArgumentException("Capacity out of range or steps do not match the model");
+        }
+        this.model = model;
+        this.capacity = capacity;
+        inputSize = model.getInputSize();
+        outputSize = model.getOutputSize();
+        this.steps = steps.clone();
+        inverseSteps = new double[inputSize];
+        for(int i = 0; i < inputSize; i++){
+            inverseSteps[i] = steps[i] > 0 ? 1 / steps[i] : 0;
+        }
+        keys = new long[capacity * inputSize];
+        hashes = new int[capacity];
+        values = new double[capacity * outputSize];
+        referenced = new boolean[capacity];
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        version = model.getVersion();
+        keyScratch = ThreadLocal.withInitial(() -> new long[inputSize]);
+        inputScratch = ThreadLocal.withInitial(() -> new double[inputSize]);
+        outputScratch = ThreadLocal.withInitial(() -> new double[outputSize]);
+    }
+
+    private static double[] filled(int length, double value){
+        double[] array = new double[length];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    /**
+     * Returns the cached outputs of the quantized input, computing and caching them on a miss
+     * @param input array of getInputSize() values
+     * @param output array of at least getOutputSize() receiving the output values
+     * @return output, or null if the arrays do not match the model
+     */
+    @Override
+    public double[] infer(double[] input, double[] output){
+        if(input.length != inputSize || output.length < outputSize) return null;
+        long[] key = keyScratch.get();
+        double[] quantized = inputScratch.get();
+        int hash = quantize(input, key, quantized);
+        InferenceModel current;
+        long currentVersion;
+        synchronized(this){
+            current = model;
+            currentVersion = current.getVersion();
+            if(currentVersion != version) invalidate(currentVersion);
+            int slot = find(key, hash);
+            if(slot >= 0){
+                hits++;
+                referenced[slot] = true;
+                System.arraycopy(values, slot * outputSize, output, 0, outputSize);
+                return output;
+            }
+            misses++;
+        }
+        if(current.infer(quantized, output) == null) return null;
+        synchronized(this){
+            // results of a model trained or replaced meanwhile are not kept
+            if(model == current && version == currentVersion && current.getVersion() == currentVersion
+                    && find(key, hash) < 0){
+                insert(key, hash, output);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Same decision as Network.think, from the cached outputs of the input
+     * @param input distance readings of the four sensors
+     * @param readings from SensorDecoder.DISTANCE.newReadings()
+     * @return readings, or null if the input does not match the model
+     */
+    public SensorDecoder.Readings think(double[] input, SensorDecoder.Readings readings){
+        double[] output = outputScratch.get();
+        if(infer(input, output) == null) return null;
+        return SensorDecoder.DISTANCE.decode(output, 0, Network.THINK_THRESHOLD, readings);
+    }
+
+    /**
+     * Fills the key and the quantized input
+     * @return hash of the key
+     */
+    private int quantize(double[] input, long[] key, double[] quantized){
+        long hash = 0;
+        for(int i = 0; i < inputSize; i++){
+            long k;
+            if(inverseSteps[i] == 0){
+                // + 0.0 turns -0.0 into 0.0
+                quantized[i] = input[i] + 0.0;
+                k = Double.doubleToLongBits(quantized[i]);
+            }
+            else{
+                k = Math.round(input[i] * inverseSteps[i]);
+                quantized[i] = k * steps[i];
+            }
+            key[i] = k;
+            hash = (hash + k) * 0x9E3779B97F4A7C15L;
+        }
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * @return slot of the key, -1 if it is not cached
+     */
+    private int find(long[] key, int hash){
+        int mask = table.length - 1;
+        for(int i = hash & mask; table[i] != 0; i = (i + 1) & mask){
+            int slot = table[i] - 1;
+            if(hashes[slot] == hash && Arrays.equals(keys, slot * inputSize, (slot + 1) * inputSize,
+                    key, 0, inputSize)){
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long[] key, int hash, double[] output){
+        int slot = size < capacity ? size++ : evict();
+        System.arraycopy(key, 0, keys, slot * inputSize, inputSize);
+        System.arraycopy(output, 0, values, slot * outputSize, outputSize);
+        hashes[slot] = hash;
+        referenced[slot] = true;
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while(table[i] != 0){
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+    }
+
+    /**
+     * Advances the CLOCK hand to the first entry not hit since the hand last passed it and removes it
+     * @return the freed slot
+     */
+    private int evict(){
+        while(referenced[hand]){
+            referenced[hand] = false;
+            hand = hand + 1 == capacity ? 0 : hand + 1;
+        }
+        int victim = hand;
+        hand = hand + 1 == capacity ? 0 : hand + 1;
+        remove(victim);
+        evictions++;
+        return victim;
+    }
+
+    /**
+     * Removes a slot from the index, shifting back the entries probed past it so no lookup stops short
+     */
+    private void remove(int slot){
+        int mask = table.length - 1;
+        int i = hashes[slot] & mask;
+        while(table[i] != slot + 1){
+            i = (i + 1) & mask;
+        }
+        table[i] = 0;
+        for(int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask){
+            int home = hashes[table[j] - 1] & mask;
+            // the entry at j stays if its home bucket lies cyclically in (i, j]
+            boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+            if(!stays){
+                table[i] = table[j];
+                table[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private void invalidate(long newVersion){
+        Arrays.fill(table, 0);
+        Arrays.fill(referenced, false);
+        size = 0;
+        hand = 0;
+        version = newVersion;
+        invalidations++;
+    }
+
+    /**
+     * Replaces the model, e.g. with one reloaded from a checkpoint, and empties the cache
+     * @param newModel model with the same input and output sizes
+     */
+    public synchronized void setModel(InferenceModel newModel){
+        if(newModel.getInputSize() != inputSize || newModel.getOutputSize() != outputSize){
+            throw new IllegalArgumentException("Model sizes do not match the cache");
+        }
+        model = newModel;
+        invalidate(newModel.getVersion());
+    }
+
+    public synchronized InferenceModel getModel(){
+        return model;
+    }
+
+    /**
+     * Empties the cache, the statistics are kept
+     */
+    public synchronized void clear(){
+        invalidate(model.getVersion());
+    }
+
+    public synchronized void resetStatistics(){
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        invalidations = 0;
+    }
+
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    /**
+     * @return entries removed by CLOCK to make room
+     */
+    public synchronized long getEvictions(){
+        return evictions;
+    }
+
+    /**
+     * @return times the cache was emptied because the model changed or clear was called
+     */
+    public synchronized long getInvalidations(){
+        return invalidations;
+    }
+
+    /**
+     * @return hits / lookups, NaN before the first lookup
+     */
+    public synchronized double getHitRate(){
+        return (double) hits / (hits + misses);
+    }
+
+    /**
+     * @return number of cached entries
+     */
+    public synchronized int size(){
+        return size;
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    @Override
+    public int getInputSize(){
+        return inputSize;
+    }
+
+    @Override
+    public int getOutputSize(){
+        return outputSize;
+    }
+
+    @Override
+    public long getVersion(){
+        return getModel().getVersion();
+    }
+
+    @Override
+    public synchronized String toString(){
+        return String.format("%d/%d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations",
+                size, capacity, hits, misses, 100 * getHitRate(), evictions, invalidations);
+    }
+
+    /**
+     * Replays a control loop over simulated distance readings with and without the cache and prints the time per
+     * tick and the hit rate. Usage: InferenceCache [network-file [capacity [step]]]
+     * The four readings drift by one at a time and each one only moves on about one tick in twenty, as when the
+     * robot idles or follows a wall. Halfway through, the network is trained once to show the invalidation.
+     */
+    public static void main(String[] args) throws Exception {
+        Network network = args.length > 0 ? InferenceServer.loadModel(args[0])
+                : new Network(new int[]{4, 128, 128, 12});
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        double step = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        int ticks = 2_000_000;
+        double[][] readings = new double[ticks][];
+        Random random = new Random(7);
+        double[] distances = {30, 12, 30, 40};
+        for(int tick = 0; tick < ticks; tick++){
+            for(int sensor = 0; sensor < 4; sensor++){
+                if(random.nextInt(20) == 0){
+                    double moved = distances[sensor] + (random.nextBoolean() ? 1 : -1);
+                    distances[sensor] = Math.max(0, Math.min(40, moved));
+                }
+            }
+            readings[tick] = distances.clone();
+        }
+        InferenceCache cache = new InferenceCache(network, capacity, step);
+        SensorDecoder.Readings states = SensorDecoder.DISTANCE.newReadings();
+        double[] output = new double[network.OUTPUT_SIZE];
+        for(int round = 0; round < 3; round++){
+            long start = System.nanoTime();
+            for(double[] input : readings){
+                network.infer(input, output);
+                SensorDecoder.DISTANCE.decode(output, 0, Network.THINK_THRESHOLD, states);
+            }
+            long uncached = System.nanoTime() - start;
+            cache.clear();
+            cache.resetStatistics();
+            start = System.nanoTime();
+            for(int tick = 0; tick < ticks; tick++){
+                if(tick == ticks / 2) network.train(new double[]{0, 0, 0, 0}, new double[network.OUTPUT_SIZE], 0.01);
+                cache.think(readings[tick], states);
+            }
+            long cached = System.nanoTime() - start;
+            System.out.printf("uncached %.0f ns/tick, cached %.0f ns/tick: %s%n", (double) uncached / ticks,
+                    (double) cached / ticks, cache);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package nn.DenisAleksandrov;
+
+/**
+ * A trained model that maps an input vector to an output vector without changing its own state,
+ * so one instance can be shared by several threads.
+ */
+public interface InferenceModel {
+    /**
+     * @return the number of values the model takes as input
+     */
+    int getInputSize();
+
+    /**
+     * @return the number of values the model produces
+     */
+    int getOutputSize();
+
+    /**
+     * Feeds the input through the model
+     * @param input array of getInputSize() values
+     * @param output array of at least getOutputSize() receiving the output values
+     * @return output, or null if the arrays do not match the model
+     */
+    double[] infer(double[] input, double[] output);
+
+    /**
+     * Number that changes whenever the model's outputs for a given input may have changed, e.g. after training,
+     * so that results computed before can be told apart from current ones. See InferenceCache.
+     * @return current version, by default 0 for a model that never changes
+     */
+    default long getVersion(){
+        return 0;
+    }
+
+    /**
+     * Feeds several inputs through the model, by default one infer per row
+     * @param inputs flat row-major count x getInputSize() matrix of input vectors
+     * @param outputs receives the flat row-major count x getOutputSize() matrix of output vectors
+     * @param count number of inputs
+     * @return outputs, or null if the arrays do not match the model
+     */
+    default double[] inferBatch(double[] inputs, double[] outputs, int count){
+        int inputSize = getInputSize();
+        int outputSize = getOutputSize();
+        if(inputs.length < count * inputSize || outputs.length < count * outputSize) return null;
+        double[] input = new double[inputSize];
+        double[] output = new double[outputSize];
+        for(int row = 0; row < count; row++){
+            System.arraycopy(inputs, row * inputSize, input, 0, inputSize);
+            if(infer(input, output) == null) return null;
+            System.arraycopy(output, 0, outputs, row * outputSize, outputSize);
+        }
+        return outputs;
+    }
+}
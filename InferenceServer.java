@@ -0,0 +1,440 @@
+package nn.DenisAleksandrov;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves one model to every process of the robot stack over HTTP on localhost, instead of each process loading
+ * its own copy with Network.loadNetwork.
+ *
+ * POST /infer with one input vector per line, values separated by commas or spaces, answers one JSON object per
+ * line: {"outputs":[...],"messages":[...]}. The messages are the obstacle messages of Network.getMessage for the
+ * outputs, null where no output of a direction is above the threshold. The threshold defaults to the 0.98 of
+ * Network.think and can be changed with /infer?threshold=0.7.
+ *
+ * Concurrent requests are grouped into micro-batches run with one InferenceModel.inferBatch call. A batch is
+ * sent as soon as it holds maxBatch requests or the oldest request has waited maxWait. The wait adapts to the
+ * load: while requests arrive one at a time (a moving average of the batch size below 1.5) nothing is waited for,
+ * so a lone client sees no added latency, and as soon as requests start to queue up together the batcher waits
+ * up to maxWait for more.
+ *
+ * Run with: java nn.DenisAleksandrov.InferenceServer model-file [port] [maxBatch] [maxWaitMicros]
+ * or, for the latency and throughput report, InferenceServer --report [model-file].
+ */
+public class InferenceServer implements AutoCloseable {
+    /**
+     * Confidence an output needs to produce a message when the request does not give a threshold, as in think
+     */
+    public static final double DEFAULT_THRESHOLD = Network.THINK_THRESHOLD;
+
+    static{
+        // the JDK server writes headers and body separately, without TCP_NODELAY every answer waits ~40 ms for
+        // a delayed ACK. Only read when the first HttpServer of the JVM is created.
+        if(System.getProperty("sun.net.httpserver.nodelay") == null){
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final InferenceModel aModel;
+    private final int aMaxBatch;
+    private final long aMaxWaitNanos;
+    private final BlockingQueue<Request> aQueue = new LinkedBlockingQueue<>();
+    private final HttpServer aServer;
+    private final ExecutorService aHandlers;
+    private final Thread aBatcher;
+
+    /**
+     * Moving average of the batch size, decides whether the batcher waits for more requests
+     */
+    private double aAverageBatch = 1;
+
+    private final AtomicLong aBatches = new AtomicLong();
+    private final AtomicLong aRequests = new AtomicLong();
+    private volatile boolean aClosed;
+
+    /**
+     * Starts serving the model on http://localhost:port/infer
+     * @param pModel model to serve, shared by all requests
+     * @param pPort port to listen on, 0 for any free port
+     * @param pMaxBatch largest number of requests run as one batch, 1 to turn batching off
+     * @param pMaxWaitMicros longest time the oldest request of a batch waits for more requests
+     * @throws IOException in the case the port cannot be bound
+     */
+    public InferenceServer(InferenceModel pModel, int pPort, int pMaxBatch, long pMaxWaitMicros) throws IOException {
+        aModel = pModel;
+        aMaxBatch = Math.max(1, pMaxBatch);
+        aMaxWaitNanos = Math.max(0, pMaxWaitMicros) * 1000;
+        aHandlers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "inference-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        aServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), pPort), 128);
+        aServer.setExecutor(aHandlers);
+        aServer.createContext("/infer", this::handle);
+        aBatcher = new Thread(this::batch, "inference-batcher");
+        aBatcher.setDaemon(true);
+        aBatcher.start();
+        aServer.start();
+    }
+
+    /**
+     * @return port the server listens on
+     */
+    public int getPort(){
+        return aServer.getAddress().getPort();
+    }
+
+    /**
+     * @return mean number of requests per batch since the server started
+     */
+    public double getMeanBatchSize(){
+        long batches = aBatches.get();
+        return batches == 0 ? 0 : (double) aRequests.get() / batches;
+    }
+
+    /**
+     * Runs one input through the model as part of the next micro-batch, the same path HTTP requests take
+     * @param input input vector of the model's input size
+     * @return the model's output vector
+     * @throws IOException in the case the input does not match the model, the model fails or the server is closed
+     */
+    public double[] infer(double[] input) throws IOException {
+        if(input.length != aModel.getInputSize()){
+            throw new IOException("Expected " + aModel.getInputSize() + " inputs but got " + input.length);
+        }
+        if(aClosed) throw new IOException("Inference server is closed");
+        Request request = new Request(input, new double[aModel.getOutputSize()]);
+        aQueue.add(request);
+        // close may have drained the queue between the check above and the add
+        if(aClosed && aQueue.remove(request)) throw new IOException("Inference server is closed");
+        try{
+            request.done.await();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for inference", e);
+        }
+        if(request.failed) throw new IOException(aClosed ? "Inference server is closed" : "Inference failed");
+        return request.output;
+    }
+
+    /**
+     * Stops listening and fails the requests still waiting
+     */
+    @Override
+    public void close(){
+        aClosed = true;
+        aServer.stop(0);
+        aBatcher.interrupt();
+        try{
+            aBatcher.join();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        Request request;
+        while((request = aQueue.poll()) != null){
+            request.failed = true;
+            request.done.countDown();
+        }
+        aHandlers.shutdown();
+    }
+
+    /**
+     * An input waiting for its batch to run
+     */
+    private static final class Request{
+        private final double[] input;
+        private final double[] output;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean failed;
+
+        Request(double[] input, double[] output){
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Body of the batcher thread: collects requests into batches and runs them
+     */
+    private void batch(){
+        int inputSize = aModel.getInputSize();
+        int outputSize = aModel.getOutputSize();
+        Request[] batch = new Request[aMaxBatch];
+        double[] inputs = new double[aMaxBatch * inputSize];
+        double[] outputs = new double[aMaxBatch * outputSize];
+        try{
+            while(true){
+                batch[0] = aQueue.take();
+                int count = 1;
+                boolean ran = false;
+                try{
+                    long deadline = System.nanoTime() + aMaxWaitNanos;
+                    // only wait for more requests while they have been arriving together
+                    boolean wait = aAverageBatch >= 1.5;
+                    while(count < aMaxBatch){
+                        Request next = aQueue.poll();
+                        if(next == null && wait){
+                            long left = deadline - System.nanoTime();
+                            if(left > 0) next = aQueue.poll(left, TimeUnit.NANOSECONDS);
+                        }
+                        if(next == null) break;
+                        batch[count++] = next;
+                    }
+                    aAverageBatch = 0.9 * aAverageBatch + 0.1 * count;
+                    for(int i = 0; i < count; i++){
+                        System.arraycopy(batch[i].input, 0, inputs, i * inputSize, inputSize);
+                    }
+                    try{
+                        ran = aModel.inferBatch(inputs, outputs, count) != null;
+                    }
+                    catch(RuntimeException e){
+                        // fail this batch only, the next one may run
+                    }
+                    if(ran){
+                        for(int i = 0; i < count; i++){
+                            System.arraycopy(outputs, i * outputSize, batch[i].output, 0, outputSize);
+                        }
+                        aBatches.incrementAndGet();
+                        aRequests.addAndGet(count);
+                    }
+                }
+                finally{
+                    // every request taken off the queue is completed, also when closing interrupts the wait
+                    for(int i = 0; i < count; i++){
+                        batch[i].failed = !ran;
+                        batch[i].done.countDown();
+                        batch[i] = null;
+                    }
+                }
+            }
+        }
+        catch(InterruptedException e){
+            // closed
+        }
+    }
+
+    /**
+     * Handles POST /infer
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try(exchange){
+            if(!"POST".equals(exchange.getRequestMethod())){
+                respond(exchange, 405, "Use POST\n");
+                return;
+            }
+            double threshold = DEFAULT_THRESHOLD;
+            String query = exchange.getRequestURI().getQuery();
+            if(query != null){
+                for(String parameter : query.split("&")){
+                    if(parameter.startsWith("threshold=")){
+                        try{
+                            threshold = Double.parseDouble(parameter.substring("threshold=".length()));
+                        }
+                        catch(NumberFormatException e){
+                            respond(exchange, 400, "Bad threshold\n");
+                            return;
+                        }
+                    }
+                }
+            }
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            StringBuilder answer = new StringBuilder();
+            for(String line : body.split("\n")){
+                line = line.trim();
+                if(line.isEmpty()) continue;
+                String[] values = line.split("[,\\s]+");
+                double[] input = new double[values.length];
+                try{
+                    for(int i = 0; i < values.length; i++){
+                        input[i] = Double.parseDouble(values[i]);
+                    }
+                }
+                catch(NumberFormatException e){
+                    respond(exchange, 400, "Bad input line: " + line + "\n");
+                    return;
+                }
+                double[] output;
+                try{
+                    output = infer(input);
+                }
+                catch(IOException e){
+                    respond(exchange, aClosed ? 503 : 400, e.getMessage() + "\n");
+                    return;
+                }
+                SensorDecoder decoder = SensorDecoder.DISTANCE;
+                String[] messages = decoder.messages(decoder.decode(output, 0, threshold, decoder.newReadings()),
+                        new String[decoder.SENSORS]);
+                appendJson(answer, output, messages);
+            }
+            respond(exchange, 200, answer.toString());
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", status == 200 ? "application/x-ndjson" : "text/plain");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()){
+            out.write(bytes);
+        }
+    }
+
+    private static void appendJson(StringBuilder answer, double[] output, String[] messages){
+        answer.append("{\"outputs\":[");
+        for(int i = 0; i < output.length; i++){
+            if(i > 0) answer.append(',');
+            answer.append(output[i]);
+        }
+        answer.append("],\"messages\":[");
+        for(int i = 0; i < messages.length; i++){
+            if(i > 0) answer.append(',');
+            if(messages[i] == null) answer.append("null");
+            else answer.append('"').append(messages[i]).append('"');
+        }
+        answer.append("]}\n");
+    }
+
+    /**
+     * Loads a model saved with saveNetwork or saveBinary, telling them apart by the checkpoint's magic number
+     */
+    static Network loadModel(String pathname) throws IOException {
+        int magic;
+        try(DataInputStream in = new DataInputStream(new FileInputStream(pathname))){
+            magic = Integer.reverseBytes(in.readInt());
+        }
+        catch(IOException e){
+            magic = 0;
+        }
+        return magic == Checkpoint.MAGIC ? Network.loadBinary(pathname) : Network.loadNetwork(pathname);
+    }
+
+    /**
+     * Measures latency against throughput for a number of concurrent HTTP clients, each sending single-input
+     * requests back to back, with batching off and on
+     * @param model model to serve
+     * @param clients numbers of concurrent clients to measure
+     * @param millis duration of every measurement
+     */
+    public static void loadReport(InferenceModel model, int[] clients, long millis)
+            throws IOException, InterruptedException {
+        System.out.printf("%-22s %8s %12s %10s %10s %8s%n", "server", "clients", "requests/s", "p50 us", "p99 us",
+                "batch");
+        int[][] configurations = {{1, 0}, {32, 200}, {32, 1000}};
+        try(InferenceServer server = new InferenceServer(model, 0, 32, 200)){
+            // warm up the JIT on both the server and the client side
+            load(server, model.getInputSize(), 4, millis);
+        }
+        for(int[] configuration : configurations){
+            for(int count : clients){
+                try(InferenceServer server = new InferenceServer(model, 0, configuration[0], configuration[1])){
+                    double[] result = load(server, model.getInputSize(), count, millis);
+                    String name = configuration[0] == 1 ? "no batching"
+                            : "batch " + configuration[0] + ", wait " + configuration[1] + "us";
+                    System.out.printf("%-22s %8d %12.0f %10.0f %10.0f %8.2f%n", name, count, result[0], result[1],
+                            result[2], server.getMeanBatchSize());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {requests per second, p50 latency in microseconds, p99 latency in microseconds}
+     */
+    private static double[] load(InferenceServer server, int inputSize, int clients, long millis)
+            throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        URI uri = URI.create("http://localhost:" + server.getPort() + "/infer");
+        StringBuilder body = new StringBuilder();
+        for(int i = 0; i < inputSize; i++){
+            if(i > 0) body.append(", ");
+            body.append(100 + 10 * i);
+        }
+        HttpRequest request = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        long warmupEnd = System.nanoTime() + millis * 1_000_000 / 2;
+        long end = warmupEnd + millis * 1_000_000;
+        long[][] latencies = new long[clients][];
+        int[] counts = new int[clients];
+        Thread[] threads = new Thread[clients];
+        for(int c = 0; c < clients; c++){
+            int id = c;
+            threads[c] = new Thread(() -> {
+                long[] own = new long[1 << 16];
+                int count = 0;
+                try{
+                    long now;
+                    while((now = System.nanoTime()) < end){
+                        client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                        long done = System.nanoTime();
+                        if(now >= warmupEnd){
+                            if(count == own.length) own = Arrays.copyOf(own, 2 * count);
+                            own[count++] = done - now;
+                        }
+                    }
+                }
+                catch(IOException | InterruptedException e){
+                    // counted as far as it got
+                }
+                latencies[id] = own;
+                counts[id] = count;
+            });
+            threads[c].start();
+        }
+        int total = 0;
+        for(int c = 0; c < clients; c++){
+            threads[c].join();
+            total += counts[c];
+        }
+        long[] all = new long[total];
+        for(int c = 0, at = 0; c < clients; c++){
+            System.arraycopy(latencies[c], 0, all, at, counts[c]);
+            at += counts[c];
+        }
+        Arrays.sort(all);
+        if(total == 0) return new double[]{0, Double.NaN, Double.NaN};
+        return new double[]{total / (millis / 1000.0), all[total / 2] / 1000.0, all[(int) (total * 0.99)] / 1000.0};
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length > 0 && args[0].equals("--report")){
+            InferenceModel model = args.length > 1 ? loadModel(args[1]) : new Network(new int[]{4, 128, 128, 12});
+            loadReport(model, new int[]{1, 4, 16, 64}, 2000);
+            return;
+        }
+        if(args.length == 0){
+            System.out.println("Usage: InferenceServer model-file [port] [maxBatch] [maxWaitMicros]"
+                    + " | InferenceServer --report [model-file]");
+            return;
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8420;
+        int maxBatch = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        long maxWait = args.length > 3 ? Long.parseLong(args[3]) : 500;
+        InferenceServer server = new InferenceServer(loadModel(args[0]), port, maxBatch, maxWait);
+        System.out.println("Serving " + args[0] + " on http://localhost:" + server.getPort() + "/infer");
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,170 @@
+package nn.DenisAleksandrov;
+
+/**
+ * The vector operations the network's hot loops are built from.
+ * This class is the plain scalar implementation, VectorKernels overrides it with SIMD code on top of the
+ * jdk.incubator.vector module. The backend is picked once when the class is loaded:
+ * VectorKernels if the module is present (run with --add-modules jdk.incubator.vector), the scalar code otherwise.
+ * Setting the system property nn.kernels=scalar forces the scalar backend.
+ */
+class Kernels {
+    /**
+     * The plain scalar backend
+     */
+    static final Kernels SCALAR = new Kernels();
+    /**
+     * The backend used by new networks
+     */
+    static final Kernels DEFAULT = select();
+
+    /**
+     * @return a short name of the backend for reports
+     */
+    String name(){
+        return "scalar";
+    }
+
+    /**
+     * Dot product of a[aOff .. aOff + n - 1] and b[bOff .. bOff + n - 1]
+     */
+    double dot(double[] a, int aOff, double[] b, int bOff, int n){
+        double sum = 0;
+        for(int i = 0; i < n; i++){
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    /**
+     * y[yOff .. yOff + n - 1] += alpha * x[xOff .. xOff + n - 1]
+     */
+    void axpy(double alpha, double[] x, int xOff, double[] y, int yOff, int n){
+        for(int i = 0; i < n; i++){
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    /**
+     * Dot product of a compressed sparse row and a dense vector: the sum of values[k] * x[columns[k]] for k from
+     * from to to - 1
+     */
+    double sparseDot(double[] values, int[] columns, int from, int to, double[] x){
+        double sum = 0;
+        for(int k = from; k < to; k++){
+            sum += values[k] * x[columns[k]];
+        }
+        return sum;
+    }
+
+    /**
+     * Dot product of a[aOff .. aOff + n - 1] and b[bOff .. bOff + n - 1] of signed bytes, summed exactly in an int
+     * (n below 2^17 cannot overflow)
+     */
+    int dot(byte[] a, int aOff, byte[] b, int bOff, int n){
+        int sum = 0;
+        for(int i = 0; i < n; i++){
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Loads VectorKernels if the vector module is available, falls back to the scalar backend otherwise
+     */
+    private static Kernels select(){
+        if("scalar".equals(System.getProperty("nn.kernels"))) return SCALAR;
+        try{
+            return (Kernels) Class.forName("nn.DenisAleksandrov.VectorKernels").getDeclaredConstructor().newInstance();
+        }
+        catch(ReflectiveOperationException | LinkageError e){
+            return SCALAR;
+        }
+    }
+
+    /**
+     * Compares the scalar backend with the selected one on the kernels and on a training step,
+     * prints the largest difference between their results and the time per call.
+     */
+    public static void main(String[] args){
+        System.out.println("Selected backend: " + DEFAULT.name());
+        for(int n : new int[]{8, 16, 32, 64, 128, 256, 4096}){
+            double[] a = new double[n];
+            double[] b = new double[n];
+            for(int i = 0; i < n; i++){
+                a[i] = 2 * Math.random() - 1;
+                b[i] = 2 * Math.random() - 1;
+            }
+            double error = Math.abs(SCALAR.dot(a, 0, b, 0, n) - DEFAULT.dot(a, 0, b, 0, n));
+            System.out.printf("n=%d dot: scalar %.1f ns, %s %.1f ns, |difference| %.2e%n", n,
+                    timeDot(SCALAR, a, b), DEFAULT.name(), timeDot(DEFAULT, a, b), error);
+            System.out.printf("n=%d axpy: scalar %.1f ns, %s %.1f ns%n", n,
+                    timeAxpy(SCALAR, a, b), DEFAULT.name(), timeAxpy(DEFAULT, a, b));
+        }
+        int[] layerSizes = new int[]{100, 1000, 1000, 10};
+        Network scalar = new Network(layerSizes, SCALAR);
+        Network vector = new Network(layerSizes, DEFAULT);
+        for(int layer = 1; layer < layerSizes.length; layer++){
+            System.arraycopy(scalar.weights[layer], 0, vector.weights[layer], 0, scalar.weights[layer].length);
+            System.arraycopy(scalar.biases[layer], 0, vector.biases[layer], 0, scalar.biases[layer].length);
+        }
+        double[] input = new double[layerSizes[0]];
+        double[] target = new double[layerSizes[layerSizes.length - 1]];
+        for(int i = 0; i < input.length; i++){
+            input[i] = Math.random();
+        }
+        target[0] = 1;
+        for(int i = 0; i < 3; i++){
+            long scalarTime = timeTrain(scalar, input, target);
+            long vectorTime = timeTrain(vector, input, target);
+            System.out.printf("train %s: scalar %d us, %s %d us%n", java.util.Arrays.toString(layerSizes),
+                    scalarTime / 1000, DEFAULT.name(), vectorTime / 1000);
+        }
+        double error = 0;
+        for(int layer = 1; layer < layerSizes.length; layer++){
+            for(int i = 0; i < scalar.weights[layer].length; i++){
+                error = Math.max(error, Math.abs(scalar.weights[layer][i] - vector.weights[layer][i]));
+            }
+        }
+        System.out.printf("largest weight difference after training: %.2e%n", error);
+    }
+
+    /**
+     * Best of several rounds, the first rounds of the small lengths still run partly interpreted
+     */
+    private static double timeDot(Kernels kernels, double[] a, double[] b){
+        double sink = 0;
+        double best = Double.MAX_VALUE;
+        int reps = 20_000_000 / a.length;
+        for(int round = 0; round < 5; round++){
+            long start = System.nanoTime();
+            for(int i = 0; i < reps; i++){
+                sink += kernels.dot(a, 0, b, 0, a.length);
+            }
+            best = Math.min(best, (double) (System.nanoTime() - start) / reps);
+        }
+        if(sink == 42) System.out.println();
+        return best;
+    }
+
+    private static double timeAxpy(Kernels kernels, double[] x, double[] y){
+        double[] copy = y.clone();
+        double best = Double.MAX_VALUE;
+        int reps = 20_000_000 / x.length;
+        for(int round = 0; round < 5; round++){
+            long start = System.nanoTime();
+            for(int i = 0; i < reps; i++){
+                kernels.axpy(1e-9, x, 0, copy, 0, x.length);
+            }
+            best = Math.min(best, (double) (System.nanoTime() - start) / reps);
+        }
+        return best;
+    }
+
+    private static long timeTrain(Network network, double[] input, double[] target){
+        long start = System.nanoTime();
+        for(int i = 0; i < 50; i++){
+            network.train(input, target, 0.01);
+        }
+        return (System.nanoTime() - start) / 50;
+    }
+}
@@ -0,0 +1,297 @@
+package nn.DenisAleksandrov;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Training and inference metrics, published in the Prometheus text exposition format.
+ * Set an instance on a Trainer with setMetrics to count samples, updates and epochs and follow the MSE and the
+ * learning rate while it trains, and on a Network with setMetrics to time its inferences.
+ * serve(port) exposes them on http://localhost:port/metrics.
+ *
+ * Recording only adds to LongAdders and writes volatile fields, nothing is allocated and no lock is taken,
+ * so a trainer or network without metrics set only pays a null check per update or inference.
+ * Several threads may record at once, the text is only built when it is scraped.
+ */
+public final class Metrics implements AutoCloseable {
+    /**
+     * Samples trained on
+     */
+    public final Counter samples = new Counter("ffnn_train_samples_total", "Samples trained on");
+    /**
+     * Weight updates, one per sample or per mini-batch
+     */
+    public final Counter updates = new Counter("ffnn_train_updates_total", "Weight updates applied");
+    /**
+     * Completed epochs of the epoch loop
+     */
+    public final Counter epochs = new Counter("ffnn_train_epochs_total", "Completed training epochs");
+    /**
+     * Network.getMSE() after the last update
+     */
+    public final Gauge mse = new Gauge("ffnn_train_mse", "MSE of the last update");
+    /**
+     * Lowest MSE of a single update so far
+     */
+    public final Gauge bestMSE = new Gauge("ffnn_train_best_mse", "Lowest MSE of an update so far");
+    /**
+     * MSE on the validation set at the end of the last epoch, NaN without one
+     */
+    public final Gauge validationMSE = new Gauge("ffnn_validation_mse", "Validation MSE of the last epoch");
+    /**
+     * Learning rate of the last update
+     */
+    public final Gauge learningRate = new Gauge("ffnn_train_learning_rate", "Learning rate of the last update");
+    /**
+     * Time taken by every weight update, including its forward and backward passes
+     */
+    public final Histogram updateLatency = new Histogram("ffnn_update_duration_seconds",
+            "Duration of a weight update including its forward and backward passes");
+    /**
+     * Time taken by every Network.infer
+     */
+    public final Histogram inferenceLatency = new Histogram("ffnn_inference_duration_seconds",
+            "Duration of an inference");
+
+    /**
+     * Endpoint started by serve, null if not serving
+     */
+    private HttpServer server;
+
+    public Metrics(){
+        mse.value = Double.NaN;
+        bestMSE.value = Double.NaN;
+        validationMSE.value = Double.NaN;
+        learningRate.value = Double.NaN;
+    }
+
+    /**
+     * Records one weight update
+     * @param count number of samples of the update
+     * @param nanos duration of the update
+     * @param updateMSE MSE of the update, NaN if it is not known
+     * @param eta learning rate of the update
+     */
+    void update(int count, long nanos, double updateMSE, double eta){
+        samples.add(count);
+        updates.add(1);
+        updateLatency.record(nanos);
+        learningRate.value = eta;
+        if(updateMSE == updateMSE){
+            mse.value = updateMSE;
+            // a race between two threads can only lose an improvement that the next update reports again
+            double best = bestMSE.value;
+            if(!(best <= updateMSE)) bestMSE.value = updateMSE;
+        }
+    }
+
+    /**
+     * Records the end of an epoch
+     * @param validation MSE on the validation set, NaN without one
+     */
+    void epoch(double validation){
+        epochs.add(1);
+        validationMSE.value = validation;
+    }
+
+    /**
+     * Starts serving the metrics on http://localhost:port/metrics, in a background thread.
+     * The endpoint only listens on the loopback interface.
+     * @param port port to listen on, 0 for any free port
+     * @return the port listened on
+     * @throws IOException in the case the port cannot be bound
+     */
+    public synchronized int serve(int port) throws IOException {
+        if(server != null) return server.getAddress().getPort();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream out = exchange.getResponseBody()){
+                out.write(body);
+            }
+        });
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the endpoint started by serve
+     */
+    @Override
+    public synchronized void close(){
+        if(server != null){
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String scrape(){
+        StringBuilder text = new StringBuilder(4096);
+        samples.write(text);
+        updates.write(text);
+        epochs.write(text);
+        mse.write(text);
+        bestMSE.write(text);
+        validationMSE.write(text);
+        learningRate.write(text);
+        updateLatency.write(text);
+        inferenceLatency.write(text);
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type){
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String number(double value){
+        if(value == Double.POSITIVE_INFINITY) return "+Inf";
+        if(value == Double.NEGATIVE_INFINITY) return "-Inf";
+        return Double.toString(value);
+    }
+
+    /**
+     * A value that only goes up
+     */
+    public static final class Counter{
+        private final String name;
+        private final String help;
+        private final LongAdder count = new LongAdder();
+
+        Counter(String name, String help){
+            this.name = name;
+            this.help = help;
+        }
+
+        public void add(long amount){
+            count.add(amount);
+        }
+
+        public long get(){
+            return count.sum();
+        }
+
+        private void write(StringBuilder text){
+            header(text, name, help, "counter");
+            text.append(name).append(' ').append(count.sum()).append('\n');
+        }
+    }
+
+    /**
+     * A value that is set, the last write wins
+     */
+    public static final class Gauge{
+        private final String name;
+        private final String help;
+        private volatile double value;
+
+        Gauge(String name, String help){
+            this.name = name;
+            this.help = help;
+        }
+
+        public void set(double value){
+            this.value = value;
+        }
+
+        public double get(){
+            return value;
+        }
+
+        private void write(StringBuilder text){
+            header(text, name, help, "gauge");
+            text.append(name).append(' ').append(number(value)).append('\n');
+        }
+    }
+
+    /**
+     * Distribution of durations over exponential buckets from 128 nanoseconds to about 4 seconds,
+     * each bucket twice as wide as the one before
+     */
+    public static final class Histogram{
+        /**
+         * Upper bound of bucket i is 2^(SHIFT + i) nanoseconds, the last bucket is unbounded
+         */
+        static final int BUCKETS = 27;
+        private static final int SHIFT = 7;
+        private final String name;
+        private final String help;
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String name, String help){
+            this.name = name;
+            this.help = help;
+            for(int i = 0; i < BUCKETS; i++){
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param nanos duration to record
+         */
+        public void record(long nanos){
+            // index of the smallest power of two bound >= nanos
+            int bucket = nanos <= 1L << SHIFT ? 0 : 64 - Long.numberOfLeadingZeros((nanos - 1) >> SHIFT);
+            counts[Math.min(bucket, BUCKETS - 1)].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * @return number of recorded durations
+         */
+        public long count(){
+            long total = 0;
+            for(LongAdder count : counts){
+                total += count.sum();
+            }
+            return total;
+        }
+
+        /**
+         * Estimates a quantile from the buckets, as Prometheus' histogram_quantile does
+         * @param q quantile between 0 and 1
+         * @return upper bound in seconds of the bucket holding the quantile, NaN if nothing was recorded
+         */
+        public double quantile(double q){
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for(int i = 0; i < BUCKETS; i++){
+                snapshot[i] = counts[i].sum();
+                total += snapshot[i];
+            }
+            if(total == 0) return Double.NaN;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for(int i = 0; i < BUCKETS - 1; i++){
+                seen += snapshot[i];
+                if(seen >= rank) return (1L << (SHIFT + i)) / 1e9;
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        private void write(StringBuilder text){
+            header(text, name, help, "histogram");
+            long cumulative = 0;
+            for(int i = 0; i < BUCKETS; i++){
+                cumulative += counts[i].sum();
+                text.append(name).append("_bucket{le=\"")
+                        .append(i == BUCKETS - 1 ? "+Inf" : number((1L << (SHIFT + i)) / 1e9))
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(name).append("_sum ").append(number(sumNanos.sum() / 1e9)).append('\n');
+            text.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+}
@@ -1,13 +1,14 @@
 package nn.DenisAleksandrov;
 
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Scanner;
 
-public class Network {
+public class Network implements InferenceModel {
     /**
      * Signifies the number layers and number of neurons in each layer
      */
@@ -32,11 +33,94 @@ public class Network {
      */
     public Neuron[][] neurons;
 
+    /**
+     * weights[layer]: row-major LAYER_SIZES[layer] x LAYER_SIZES[layer - 1] matrix of the weights
+     * between every neuron of the layer and every neuron of the previous layer.
+     * The weight between neuron and prevNeuron is at weights[layer][neuron * LAYER_SIZES[layer - 1] + prevNeuron].
+     * weights[0] is empty, the input layer has no incoming weights.
+     */
+    final double[][] weights;
+    /**
+     * biases[layer][neuron]: bias of each neuron, biases[0] is unused
+     */
+    final double[][] biases;
+    /**
+     * outputs[layer][neuron]: output value of each neuron after the last feedForward
+     */
+    final double[][] outputs;
+    /**
+     * derivatives[layer][neuron]: derivative of the activation function of each neuron at its output
+     */
+    final double[][] derivatives;
+    /**
+     * errors[layer][neuron]: back propagation error signal of each neuron
+     */
+    final double[][] errors;
+
+    /**
+     * activations[layer]: activation function of the neurons in each layer, activations[0] is unused
+     */
+    final Activation[] activations;
+
+    /**
+     * Confidence an output needs in think to produce a message
+     */
+    public static final double THINK_THRESHOLD = 0.98;
+
+    /**
+     * Backend running the dot products and axpy loops of feedForward, backprop and updateWeightsBiases
+     */
+    final Kernels kernels;
+
     /**
      * Mean Squared Error SUM((output - target)^2)/OUTPUT_SIZE
      */
     private double MSE;
 
+    /**
+     * Update rule of the training methods, null for plain SGD
+     */
+    private Optimizer optimizer;
+
+    /**
+     * Records the duration of every infer, null for none
+     */
+    private Metrics metrics;
+
+    /**
+     * Incremented by every change of the weights or biases, see getVersion
+     */
+    private volatile long version;
+
+    /**
+     * pruningMask[layer][i]: whether weights[layer][i] survived pruning, null when not pruned, see Pruner
+     */
+    private boolean[][] pruningMask;
+
+    /**
+     * Buffers used by trainBatch, allocated on first use and grown with the batch size.
+     * batchOutputs[layer], batchDerivatives[layer] and batchErrors[layer] are row-major
+     * batch x LAYER_SIZES[layer] matrices, one row per sample.
+     * weightGradients[layer] and biasGradients[layer] have the shape of weights[layer] and biases[layer].
+     */
+    private double[][] batchOutputs;
+    private double[][] batchDerivatives;
+    private double[][] batchErrors;
+    private double[] batchTargets;
+    private double[][] weightGradients;
+    private double[][] biasGradients;
+    private int batchCapacity;
+
+    /**
+     * Per-thread scratch buffers used by infer
+     */
+    private final ThreadLocal<double[][]> inferScratch = ThreadLocal.withInitial(this::newScratch);
+
+    /**
+     * Per-thread scratch buffers used by inferBatch, grown with the batch size
+     */
+    private final ThreadLocal<double[][]> inferBatchScratch = ThreadLocal.withInitial(this::newBatchScratch);
+
     /**
      * Constructor for the network
      * Initializes the neuron matrix
@@ -46,28 +130,86 @@ public class Network {
      * @param layerSizes array signifying the number of neurons at each layer
      */
     protected Network(int[] layerSizes){
+        this(layerSizes, null, Kernels.DEFAULT);
+    }
+
+    /**
+     * Constructor for a network with a given activation function per layer
+     * @pre layerSizes != null
+     * @pre layerActivations == null || layerActivations.length == layerSizes.length - 1
+     * @param layerSizes array signifying the number of neurons at each layer
+     * @param layerActivations activation function of every layer after the input layer, null for all SIGMOID
+     */
+    protected Network(int[] layerSizes, Activation[] layerActivations){
+        this(layerSizes, layerActivations, Kernels.DEFAULT);
+    }
+
+    /**
+     * Constructor for the network running on the given kernel backend
+     * @pre layerSizes != null
+     * @param layerSizes array signifying the number of neurons at each layer
+     * @param kernels backend for the inner loops, Kernels.SCALAR or Kernels.DEFAULT
+     */
+    Network(int[] layerSizes, Kernels kernels){
+        this(layerSizes, null, kernels);
+    }
+
+    /**
+     * @param layerSizes array signifying the number of neurons at each layer
+     * @param layerActivations activation function of every layer after the input layer, null for all SIGMOID
+     * @param kernels backend for the inner loops
+     */
+    Network(int[] layerSizes, Activation[] layerActivations, Kernels kernels){
+        this(layerSizes, layerActivations, kernels, true);
+    }
+
+    /**
+     * @param layerSizes array signifying the number of neurons at each layer
+     * @param layerActivations activation function of every layer after the input layer, null for all SIGMOID
+     * @param kernels backend for the inner loops
+     * @param randomize whether to fill the weights and biases with random values or leave them at 0,
+     *                  loaders pass false since they overwrite them anyway
+     */
+    Network(int[] layerSizes, Activation[] layerActivations, Kernels kernels, boolean randomize){
         assert layerSizes != null;
+        assert layerActivations == null || layerActivations.length == layerSizes.length - 1;
+        this.kernels = kernels;
         LAYER_SIZES = layerSizes;
         INPUT_SIZE = LAYER_SIZES[0];
         NETWORK_SIZE = LAYER_SIZES.length;
         OUTPUT_SIZE = LAYER_SIZES[NETWORK_SIZE - 1];
 
+        activations = new Activation[NETWORK_SIZE];
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            activations[layer] = layerActivations == null ? Activation.SIGMOID : layerActivations[layer - 1];
+        }
+
         neurons = new Neuron[NETWORK_SIZE][];
+        weights = new double[NETWORK_SIZE][];
+        biases = new double[NETWORK_SIZE][];
+        outputs = new double[NETWORK_SIZE][];
+        derivatives = new double[NETWORK_SIZE][];
+        errors = new double[NETWORK_SIZE][];
 
         for(int layer = 0; layer < NETWORK_SIZE; layer++){
             neurons[layer] = new Neuron[LAYER_SIZES[layer]];
             for(int neuron = 0; neuron < LAYER_SIZES[layer]; neuron++){
                 neurons[layer][neuron] = new Neuron();
             }
+            weights[layer] = new double[layer == 0 ? 0 : LAYER_SIZES[layer] * LAYER_SIZES[layer - 1]];
+            biases[layer] = new double[LAYER_SIZES[layer]];
+            outputs[layer] = new double[LAYER_SIZES[layer]];
+            derivatives[layer] = new double[LAYER_SIZES[layer]];
+            errors[layer] = new double[LAYER_SIZES[layer]];
         }
 
-        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+        for(int layer = 1; randomize && layer < NETWORK_SIZE; layer++){
+            int prevSize = LAYER_SIZES[layer - 1];
             for (int neuron = 0; neuron < LAYER_SIZES[layer]; neuron++) {
-                neurons[layer][neuron].weight = new double[LAYER_SIZES[layer - 1]];
-                for (int prevNeuron = 0; prevNeuron < LAYER_SIZES[layer - 1]; prevNeuron++) {
-                    neurons[layer][neuron].weight[prevNeuron] = 2 * Math.random() - 1;
+                for (int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++) {
+                    weights[layer][neuron * prevSize + prevNeuron] = 2 * Math.random() - 1;
                 }
-                neurons[layer][neuron].bias = 2 * Math.random() - 1;
+                biases[layer][neuron] = 2 * Math.random() - 1;
             }
         }
     }
@@ -79,22 +221,119 @@ public class Network {
      */
     public Neuron[] feedForward(double[] input){
         if(input.length != INPUT_SIZE) return null;
-        //neurons[0] = input;
-        for(int i = 0; i< input.length; i++){
-            neurons[0][i].aOutput = input[i];
+        TrainingEvents.Forward event = TrainingEvents.Forward.start();
+        System.arraycopy(input, 0, outputs[0], 0, INPUT_SIZE);
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            forwardLayer(layer, outputs[layer - 1], outputs[layer], derivatives[layer]);
+        }
+        syncNeurons();
+        event.finish(1);
+        return neurons[NETWORK_SIZE-1];
+    }
+
+    /**
+     * Feeds the input through the network without touching any of its state, so a single Network can
+     * serve several threads at once as long as it is not being trained at the same time.
+     * Uses a scratch buffer owned by the calling thread, nothing is allocated after the first call on a thread.
+     * @param input value array for the neurons in input layer
+     * @param output array of at least OUTPUT_SIZE receiving the output layer values
+     * @return output, or null if the arrays do not match the network
+     */
+    @Override
+    public double[] infer(double[] input, double[] output){
+        return infer(input, output, inferScratch.get());
+    }
+
+    /**
+     * Same as infer(double[], double[]) with a caller supplied scratch buffer
+     * @param input value array for the neurons in input layer
+     * @param output array of at least OUTPUT_SIZE receiving the output layer values
+     * @param scratch buffer from newScratch(), must not be used by two threads at once
+     * @return output, or null if the arrays do not match the network
+     */
+    public double[] infer(double[] input, double[] output, double[][] scratch){
+        if(input.length != INPUT_SIZE || output.length < OUTPUT_SIZE) return null;
+        Metrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        double[] prev = input;
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            double[] out = layer == NETWORK_SIZE - 1 ? output : scratch[layer];
+            forwardLayer(layer, prev, out, null);
+            prev = out;
         }
+        if(m != null) m.inferenceLatency.record(System.nanoTime() - start);
+        return output;
+    }
+
+    /**
+     * Feeds a batch of inputs through the network at once without touching any of its state, same outputs as
+     * infer for every row up to rounding. Each weight row is loaded once for every four samples, which makes a
+     * batch cheaper than the same number of infer calls.
+     * Uses scratch buffers owned by the calling thread, nothing is allocated once they fit the batch.
+     * @param inputs flat row-major count x INPUT_SIZE matrix of input vectors
+     * @param outputs receives the flat row-major count x OUTPUT_SIZE matrix of output vectors
+     * @param count number of inputs
+     * @return outputs, or null if the arrays do not match the network
+     */
+    @Override
+    public double[] inferBatch(double[] inputs, double[] outputs, int count){
+        if(inputs.length < count * INPUT_SIZE || outputs.length < count * OUTPUT_SIZE) return null;
+        double[][] scratch = inferBatchScratch.get();
+        double[] prev = inputs;
         for(int layer = 1; layer < NETWORK_SIZE; layer++){
-            for(int neuron = 0; neuron < LAYER_SIZES[layer]; neuron++){
-                double sum = 0;
-                for(int prevNeuron = 0; prevNeuron < LAYER_SIZES[layer-1]; prevNeuron++){
-                    sum += neurons[layer-1][prevNeuron].aOutput * neurons[layer][neuron].weight[prevNeuron];
+            double[] out;
+            if(layer == NETWORK_SIZE - 1){
+                out = outputs;
+            }
+            else{
+                if(scratch[layer] == null || scratch[layer].length < count * LAYER_SIZES[layer]){
+                    scratch[layer] = new double[count * LAYER_SIZES[layer]];
                 }
-                sum += neurons[layer][neuron].bias;
-                neurons[layer][neuron].aOutput = sigmoid(sum);
-                neurons[layer][neuron].derivative = neurons[layer][neuron].aOutput * (1 - neurons[layer][neuron].aOutput);
+                out = scratch[layer];
             }
+            batchForward(layer, count, prev, out, null);
+            prev = out;
+        }
+        return outputs;
+    }
+
+    /**
+     * @return empty scratch buffer for inferBatch, its arrays are allocated with the first batch
+     */
+    private double[][] newBatchScratch(){
+        return new double[NETWORK_SIZE][];
+    }
+
+    /**
+     * Allocates a scratch buffer for infer, one array per hidden layer
+     * @return scratch buffer matching this network
+     */
+    public double[][] newScratch(){
+        double[][] scratch = new double[NETWORK_SIZE][];
+        for(int layer = 1; layer < NETWORK_SIZE - 1; layer++){
+            scratch[layer] = new double[LAYER_SIZES[layer]];
+        }
+        return scratch;
+    }
+
+    /**
+     * Computes the outputs of one layer from the outputs of the previous layer
+     * @param layer layer to compute
+     * @param prev outputs of the previous layer
+     * @param out receives the outputs of the layer
+     * @param d receives the derivatives of the layer, may be null when they are not needed
+     */
+    private void forwardLayer(int layer, double[] prev, double[] out, double[] d){
+        int prevSize = LAYER_SIZES[layer - 1];
+        double[] w = weights[layer];
+        double[] b = biases[layer];
+        Activation f = activations[layer];
+        for(int neuron = 0, row = 0; neuron < LAYER_SIZES[layer]; neuron++, row += prevSize){
+            double sum = kernels.dot(prev, 0, w, row, prevSize);
+            sum += b[neuron];
+            out[neuron] = f.apply(sum);
+            if(d != null) d[neuron] = f.derivative(out[neuron]);
         }
-        return neurons[NETWORK_SIZE-1];
     }
 
     /**
@@ -111,63 +350,637 @@ public class Network {
     }
 
     /**
-     * Back propagation algorithm for the network
-     * Output layer neurons have an error signal of ((output - target) * output_derivative)
-     * Hidden layer neurons have an error signal of (SUM(weight * backprop_error) * derivative)
+     * Same as train(double[], double[], double) on one row of flat row-major sample matrices, see Dataset
+     * @param inputs flat matrix of data vectors, INPUT_SIZE values per sample
+     * @param targets flat matrix of target vectors, OUTPUT_SIZE values per sample
+     * @param sample index of the sample to train on
+     * @param eta learning rate
+     */
+    void train(double[] inputs, double[] targets, int sample, double eta){
+        TrainingEvents.Forward event = TrainingEvents.Forward.start();
+        System.arraycopy(inputs, sample * INPUT_SIZE, outputs[0], 0, INPUT_SIZE);
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            forwardLayer(layer, outputs[layer - 1], outputs[layer], derivatives[layer]);
+        }
+        syncNeurons();
+        event.finish(1);
+        MSE = backprop(targets, sample * OUTPUT_SIZE, outputs, derivatives, errors) / OUTPUT_SIZE;
+        updateWeightsBiases(eta);
+    }
+
+    /**
+     * Runs backprop and the weight update on the outputs of the last feedForward, the second half of train
+     * @param target target vector
+     * @param eta learning rate
+     */
+    void backpropUpdate(double[] target, double eta){
+        if(target.length != OUTPUT_SIZE) return;
+        backprop(target);
+        updateWeightsBiases(eta);
+    }
+
+    /**
+     * Back propagation algorithm for the network, sets MSE for the given target
      * @pre target != null
      * @param target target values to compare output neuron outputs to
      */
     private void backprop(double[] target){
         assert target != null;
+        MSE = backprop(target, 0, outputs, derivatives, errors) / OUTPUT_SIZE;
+    }
+
+    /**
+     * Back propagation algorithm for the network
+     * Output layer neurons have an error signal of ((output - target) * output_derivative)
+     * Hidden layer neurons have an error signal of (SUM(weight * backprop_error) * derivative)
+     * The hidden layer sums walk the rows of the next layer's weight matrix so the weights are read in memory order.
+     * @param target target values to compare output neuron outputs to
+     * @param targetOff index of the first target value in target
+     * @param outs outputs of every layer after feeding forward
+     * @param derivs derivatives of every layer after feeding forward
+     * @param errs receives the error signal of every layer
+     * @return sum of the squared errors of the output layer
+     */
+    private double backprop(double[] target, int targetOff, double[][] outs, double[][] derivs, double[][] errs){
+        TrainingEvents.Backprop event = TrainingEvents.Backprop.start();
         double mseSum = 0;
-        for(int neuron = 0; neuron < LAYER_SIZES[NETWORK_SIZE-1]; neuron++){
-            neurons[NETWORK_SIZE-1][neuron].backprop_error =
-                    (neurons[NETWORK_SIZE-1][neuron].aOutput - target[neuron])
-                            * neurons[NETWORK_SIZE-1][neuron].derivative;
-            mseSum += Math.pow((neurons[NETWORK_SIZE-1][neuron].aOutput - target[neuron]), 2);
+        double[] out = outs[NETWORK_SIZE-1];
+        double[] d = derivs[NETWORK_SIZE-1];
+        double[] err = errs[NETWORK_SIZE-1];
+        for(int neuron = 0; neuron < OUTPUT_SIZE; neuron++){
+            double diff = out[neuron] - target[targetOff + neuron];
+            err[neuron] = diff * d[neuron];
+            mseSum += diff * diff;
         }
         for(int layer = NETWORK_SIZE-2; layer > 0; layer--){
-            for(int leftNeuron = 0; leftNeuron < LAYER_SIZES[layer]; leftNeuron++){
-                double sum = 0;
-                for(int rightNeuron = 0; rightNeuron < LAYER_SIZES[layer+1]; rightNeuron++){
-                    sum += neurons[layer+1][rightNeuron].weight[leftNeuron] * neurons[layer+1][rightNeuron].backprop_error;
-                }
-                neurons[layer][leftNeuron].backprop_error = sum * neurons[layer][leftNeuron].derivative;
+            int size = LAYER_SIZES[layer];
+            double[] w = weights[layer+1];
+            double[] rightErr = errs[layer+1];
+            double[] leftErr = errs[layer];
+            Arrays.fill(leftErr, 0);
+            for(int rightNeuron = 0, row = 0; rightNeuron < LAYER_SIZES[layer+1]; rightNeuron++, row += size){
+                kernels.axpy(rightErr[rightNeuron], w, row, leftErr, 0, size);
+            }
+            double[] leftD = derivs[layer];
+            for(int leftNeuron = 0; leftNeuron < size; leftNeuron++){
+                leftErr[leftNeuron] *= leftD[leftNeuron];
             }
         }
-        MSE = mseSum / OUTPUT_SIZE;
+        event.finish(1);
+        return mseSum;
     }
 
     /**
-     * Updates weights and biases on each neuron by a factor of eta
-     * Note: eta could be made to change dynamically with the error
+     * Updates weights and biases on each neuron by a factor of eta, through the optimizer if one is set
      * @param eta learning rate by a factor of which to update the biases and weights
      */
     private void updateWeightsBiases(double eta){
+        TrainingEvents.Update event = TrainingEvents.Update.start();
+        if(optimizer == null){
+            updateWeightsBiases(eta, outputs, errors);
+            event.finish(1, eta);
+            return;
+        }
+        ensureBatchCapacity(1);
         for(int layer = 1; layer < NETWORK_SIZE; layer++){
-            for(int neuron = 0; neuron < LAYER_SIZES[layer]; neuron++){
-                double delta = - eta * neurons[layer][neuron].backprop_error;
-                neurons[layer][neuron].bias += delta;
-                for(int prevNeuron = 0; prevNeuron < LAYER_SIZES[layer-1]; prevNeuron++){
-                    neurons[layer][neuron].weight[prevNeuron] += delta * neurons[layer-1][prevNeuron].aOutput;
+            int prevSize = LAYER_SIZES[layer - 1];
+            double[] gw = weightGradients[layer];
+            double[] prev = outputs[layer - 1];
+            double[] err = errors[layer];
+            System.arraycopy(err, 0, biasGradients[layer], 0, err.length);
+            for(int neuron = 0, row = 0; neuron < LAYER_SIZES[layer]; neuron++, row += prevSize){
+                double e = err[neuron];
+                for(int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++){
+                    gw[row + prevNeuron] = e * prev[prevNeuron];
+                }
+            }
+        }
+        optimizer.apply(weights, biases, weightGradients, biasGradients, pruningMask, 1, eta);
+        modified();
+        event.finish(1, eta);
+    }
+
+    /**
+     * Updates weights and biases on each neuron by a factor of eta from the given outputs and error signals,
+     * pruned weights are not written
+     * @param eta learning rate by a factor of which to update the biases and weights
+     * @param outs outputs of every layer
+     * @param errs error signal of every layer
+     */
+    private void updateWeightsBiases(double eta, double[][] outs, double[][] errs){
+        boolean[][] mask = pruningMask;
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            int prevSize = LAYER_SIZES[layer - 1];
+            double[] w = weights[layer];
+            double[] b = biases[layer];
+            double[] prev = outs[layer - 1];
+            double[] err = errs[layer];
+            boolean[] keep = mask == null ? null : mask[layer];
+            for(int neuron = 0, row = 0; neuron < LAYER_SIZES[layer]; neuron++, row += prevSize){
+                double delta = - eta * err[neuron];
+                b[neuron] += delta;
+                if(keep == null){
+                    kernels.axpy(delta, prev, 0, w, row, prevSize);
+                    continue;
+                }
+                for(int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++){
+                    if(keep[row + prevNeuron]) w[row + prevNeuron] += delta * prev[prevNeuron];
+                }
+            }
+        }
+        modified();
+    }
+
+    /**
+     * Runs the forward and backward pass for one sample in the workspace and adds its gradients to the
+     * workspace's gradient sums. Only reads the shared weights.
+     * @param input given data vector
+     * @param target target vector
+     * @param ws workspace of the calling thread
+     */
+    void accumulateGradients(double[] input, double[] target, Workspace ws){
+        forwardInto(input, ws);
+        ws.squaredError += backprop(target, 0, ws.outputs, ws.derivatives, ws.errors);
+        ws.samples++;
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            int prevSize = LAYER_SIZES[layer - 1];
+            double[] gw = ws.weightGradients[layer];
+            double[] gb = ws.biasGradients[layer];
+            double[] prev = ws.outputs[layer - 1];
+            double[] err = ws.errors[layer];
+            for(int neuron = 0, row = 0; neuron < LAYER_SIZES[layer]; neuron++, row += prevSize){
+                double e = err[neuron];
+                gb[neuron] += e;
+                kernels.axpy(e, prev, 0, gw, row, prevSize);
+            }
+        }
+    }
+
+    /**
+     * Trains the shared weights on one sample using the workspace for all intermediate values.
+     * Several threads may call this at once without locking (Hogwild), their updates can overwrite each other.
+     * Always plain SGD, the optimizer is ignored.
+     * @param input given data vector
+     * @param target target vector
+     * @param eta learning rate
+     * @param ws workspace of the calling thread
+     */
+    void trainHogwild(double[] input, double[] target, double eta, Workspace ws){
+        forwardInto(input, ws);
+        ws.squaredError += backprop(target, 0, ws.outputs, ws.derivatives, ws.errors);
+        ws.samples++;
+        TrainingEvents.Update event = TrainingEvents.Update.start();
+        updateWeightsBiases(eta, ws.outputs, ws.errors);
+        event.finish(1, eta);
+    }
+
+    /**
+     * Applies the gradient sums of the workspace to the weights and biases and sets MSE to the
+     * workspace's mean squared error
+     * @param ws workspace holding the summed gradients
+     * @param eta learning rate, the gradients are averaged over ws.samples
+     */
+    void applyGradients(Workspace ws, double eta){
+        if(ws.samples == 0) return;
+        applyGradients(ws.weightGradients, ws.biasGradients, eta, ws.samples);
+        MSE = ws.squaredError / (ws.samples * OUTPUT_SIZE);
+    }
+
+    /**
+     * Feeds the input forward through the workspace's buffers
+     */
+    private void forwardInto(double[] input, Workspace ws){
+        TrainingEvents.Forward event = TrainingEvents.Forward.start();
+        System.arraycopy(input, 0, ws.outputs[0], 0, INPUT_SIZE);
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            forwardLayer(layer, ws.outputs[layer - 1], ws.outputs[layer], ws.derivatives[layer]);
+        }
+        event.finish(1);
+    }
+
+    /**
+     * Sets MSE, used by training loops that keep their own error sums
+     * @param mse mean squared error
+     */
+    void setMSE(double mse){
+        MSE = mse;
+    }
+
+    /**
+     * Trains the network on a mini-batch. The forward and backward passes run for the whole batch at once,
+     * the gradients are averaged over the batch and the weights and biases are updated once.
+     * @pre inputs.length == targets.length
+     * @param inputs batch of given data vectors
+     * @param targets batch of target vectors
+     * @param eta learning rate
+     */
+    public void trainBatch(double[][] inputs, double[][] targets, double eta){
+        assert inputs.length == targets.length;
+        trainBatch(inputs, targets, 0, inputs.length, eta);
+    }
+
+    /**
+     * Trains the network on the mini-batch inputs[from .. from + count - 1], see trainBatch(double[][], double[][], double)
+     * @param inputs given data vectors
+     * @param targets target vectors
+     * @param from index of the first sample of the batch
+     * @param count number of samples in the batch
+     * @param eta learning rate
+     */
+    protected void trainBatch(double[][] inputs, double[][] targets, int from, int count, double eta){
+        if(count <= 0) return;
+        ensureBatchCapacity(count);
+        for(int sample = 0; sample < count; sample++){
+            if(inputs[from + sample].length != INPUT_SIZE || targets[from + sample].length != OUTPUT_SIZE) return;
+            System.arraycopy(inputs[from + sample], 0, batchOutputs[0], sample * INPUT_SIZE, INPUT_SIZE);
+            System.arraycopy(targets[from + sample], 0, batchTargets, sample * OUTPUT_SIZE, OUTPUT_SIZE);
+        }
+        trainLoadedBatch(count, eta);
+    }
+
+    /**
+     * Same as trainBatch(double[][], double[][], int, int, double) on flat row-major sample matrices, see Dataset
+     * @param inputs flat matrix of data vectors, INPUT_SIZE values per sample
+     * @param targets flat matrix of target vectors, OUTPUT_SIZE values per sample
+     * @param from index of the first sample of the batch
+     * @param count number of samples in the batch
+     * @param eta learning rate
+     */
+    void trainBatch(double[] inputs, double[] targets, int from, int count, double eta){
+        if(count <= 0) return;
+        ensureBatchCapacity(count);
+        System.arraycopy(inputs, from * INPUT_SIZE, batchOutputs[0], 0, count * INPUT_SIZE);
+        System.arraycopy(targets, from * OUTPUT_SIZE, batchTargets, 0, count * OUTPUT_SIZE);
+        trainLoadedBatch(count, eta);
+    }
+
+    /**
+     * Same as trainBatch(double[], double[], int, int, double) on the samples order[from .. from + count - 1],
+     * for training in shuffled order without moving the samples
+     * @param inputs flat matrix of data vectors, INPUT_SIZE values per sample
+     * @param targets flat matrix of target vectors, OUTPUT_SIZE values per sample
+     * @param order permutation of the sample indices
+     * @param from index in order of the first sample of the batch
+     * @param count number of samples in the batch
+     * @param eta learning rate
+     */
+    void trainBatch(double[] inputs, double[] targets, int[] order, int from, int count, double eta){
+        if(count <= 0) return;
+        ensureBatchCapacity(count);
+        for(int sample = 0; sample < count; sample++){
+            int index = order[from + sample];
+            System.arraycopy(inputs, index * INPUT_SIZE, batchOutputs[0], sample * INPUT_SIZE, INPUT_SIZE);
+            System.arraycopy(targets, index * OUTPUT_SIZE, batchTargets, sample * OUTPUT_SIZE, OUTPUT_SIZE);
+        }
+        trainLoadedBatch(count, eta);
+    }
+
+    /**
+     * Runs the batch already copied into batchOutputs[0] and batchTargets and updates the weights and biases
+     */
+    private void trainLoadedBatch(int count, double eta){
+        TrainingEvents.Forward forward = TrainingEvents.Forward.start();
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            batchForward(layer, count);
+        }
+        forward.finish(count);
+        TrainingEvents.Backprop backprop = TrainingEvents.Backprop.start();
+        batchBackprop(count);
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            batchGradients(layer, count);
+        }
+        backprop.finish(count);
+        applyGradients(weightGradients, biasGradients, eta, count);
+    }
+
+    /**
+     * Computes batchOutputs[layer] = f(batchOutputs[layer - 1] * weights[layer]^T + biases[layer])
+     * where f is the layer's activation function.
+     * @param layer layer to compute
+     * @param batchSize number of samples in the batch
+     */
+    private void batchForward(int layer, int batchSize){
+        batchForward(layer, batchSize, batchOutputs[layer - 1], batchOutputs[layer], batchDerivatives[layer]);
+    }
+
+    /**
+     * Computes the outputs of one layer for a batch of samples from the outputs of the previous layer,
+     * all row-major batchSize x layer size matrices. Each weight row is loaded once for every four samples.
+     * @param layer layer to compute
+     * @param batchSize number of samples in the batch
+     * @param prev outputs of the previous layer
+     * @param out receives the outputs of the layer
+     * @param d receives the derivatives of the layer, may be null when they are not needed
+     */
+    private void batchForward(int layer, int batchSize, double[] prev, double[] out, double[] d){
+        int size = LAYER_SIZES[layer];
+        int prevSize = LAYER_SIZES[layer - 1];
+        double[] w = weights[layer];
+        double[] b = biases[layer];
+        Activation f = activations[layer];
+        for(int neuron = 0, row = 0; neuron < size; neuron++, row += prevSize){
+            int sample = 0;
+            for(; sample + 4 <= batchSize; sample += 4){
+                int p0 = sample * prevSize;
+                int p1 = p0 + prevSize;
+                int p2 = p1 + prevSize;
+                int p3 = p2 + prevSize;
+                double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+                for(int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++){
+                    double weight = w[row + prevNeuron];
+                    sum0 += prev[p0 + prevNeuron] * weight;
+                    sum1 += prev[p1 + prevNeuron] * weight;
+                    sum2 += prev[p2 + prevNeuron] * weight;
+                    sum3 += prev[p3 + prevNeuron] * weight;
                 }
+                activate(f, out, d, sample * size + neuron, sum0 + b[neuron]);
+                activate(f, out, d, (sample + 1) * size + neuron, sum1 + b[neuron]);
+                activate(f, out, d, (sample + 2) * size + neuron, sum2 + b[neuron]);
+                activate(f, out, d, (sample + 3) * size + neuron, sum3 + b[neuron]);
+            }
+            for(; sample < batchSize; sample++){
+                int p = sample * prevSize;
+                double sum = 0;
+                for(int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++){
+                    sum += prev[p + prevNeuron] * w[row + prevNeuron];
+                }
+                activate(f, out, d, sample * size + neuron, sum + b[neuron]);
             }
         }
     }
 
     /**
-     * Sigmoid function to normalize the sum of incoming signals to each neuron to a 0-1 range
-     * @param x the sum of incoming signals
-     * @return normalized (0-1) value of the sum
+     * Back propagation over the whole batch, same error signals as backprop for every sample.
+     * Sets MSE to the mean squared error over the batch.
+     * @param batchSize number of samples in the batch
+     */
+    private void batchBackprop(int batchSize){
+        double mseSum = 0;
+        double[] out = batchOutputs[NETWORK_SIZE-1];
+        double[] d = batchDerivatives[NETWORK_SIZE-1];
+        double[] err = batchErrors[NETWORK_SIZE-1];
+        for(int i = 0; i < batchSize * OUTPUT_SIZE; i++){
+            double diff = out[i] - batchTargets[i];
+            err[i] = diff * d[i];
+            mseSum += diff * diff;
+        }
+        for(int layer = NETWORK_SIZE-2; layer > 0; layer--){
+            int size = LAYER_SIZES[layer];
+            int nextSize = LAYER_SIZES[layer+1];
+            double[] w = weights[layer+1];
+            double[] rightErr = batchErrors[layer+1];
+            double[] leftErr = batchErrors[layer];
+            Arrays.fill(leftErr, 0, batchSize * size, 0);
+            int rightNeuron = 0;
+            for(; rightNeuron + 4 <= nextSize; rightNeuron += 4){
+                int row0 = rightNeuron * size;
+                int row1 = row0 + size;
+                int row2 = row1 + size;
+                int row3 = row2 + size;
+                for(int sample = 0; sample < batchSize; sample++){
+                    int right = sample * nextSize + rightNeuron;
+                    double e0 = rightErr[right];
+                    double e1 = rightErr[right + 1];
+                    double e2 = rightErr[right + 2];
+                    double e3 = rightErr[right + 3];
+                    int left = sample * size;
+                    for(int leftNeuron = 0; leftNeuron < size; leftNeuron++){
+                        leftErr[left + leftNeuron] += w[row0 + leftNeuron] * e0 + w[row1 + leftNeuron] * e1
+                                + w[row2 + leftNeuron] * e2 + w[row3 + leftNeuron] * e3;
+                    }
+                }
+            }
+            for(int row = rightNeuron * size; rightNeuron < nextSize; rightNeuron++, row += size){
+                for(int sample = 0; sample < batchSize; sample++){
+                    double e = rightErr[sample * nextSize + rightNeuron];
+                    int left = sample * size;
+                    for(int leftNeuron = 0; leftNeuron < size; leftNeuron++){
+                        leftErr[left + leftNeuron] += w[row + leftNeuron] * e;
+                    }
+                }
+            }
+            double[] leftD = batchDerivatives[layer];
+            for(int i = 0; i < batchSize * size; i++){
+                leftErr[i] *= leftD[i];
+            }
+        }
+        MSE = mseSum / (batchSize * OUTPUT_SIZE);
+    }
+
+    /**
+     * Sums the weight and bias gradients of a layer over the batch into weightGradients and biasGradients.
+     * Each gradient row is loaded once for every four samples.
+     * @param layer layer to compute the gradients of
+     * @param batchSize number of samples in the batch
+     */
+    private void batchGradients(int layer, int batchSize){
+        int size = LAYER_SIZES[layer];
+        int prevSize = LAYER_SIZES[layer - 1];
+        double[] gw = weightGradients[layer];
+        double[] gb = biasGradients[layer];
+        double[] prev = batchOutputs[layer - 1];
+        double[] err = batchErrors[layer];
+        Arrays.fill(gw, 0);
+        Arrays.fill(gb, 0);
+        for(int neuron = 0, row = 0; neuron < size; neuron++, row += prevSize){
+            int sample = 0;
+            for(; sample + 4 <= batchSize; sample += 4){
+                double e0 = err[sample * size + neuron];
+                double e1 = err[(sample + 1) * size + neuron];
+                double e2 = err[(sample + 2) * size + neuron];
+                double e3 = err[(sample + 3) * size + neuron];
+                gb[neuron] += e0 + e1 + e2 + e3;
+                int p0 = sample * prevSize;
+                int p1 = p0 + prevSize;
+                int p2 = p1 + prevSize;
+                int p3 = p2 + prevSize;
+                for(int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++){
+                    gw[row + prevNeuron] += e0 * prev[p0 + prevNeuron] + e1 * prev[p1 + prevNeuron]
+                            + e2 * prev[p2 + prevNeuron] + e3 * prev[p3 + prevNeuron];
+                }
+            }
+            for(; sample < batchSize; sample++){
+                double e = err[sample * size + neuron];
+                gb[neuron] += e;
+                int p = sample * prevSize;
+                for(int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++){
+                    gw[row + prevNeuron] += e * prev[p + prevNeuron];
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the gradient sums of count samples to every weight and bias, as an averaged SGD update
+     * or through the optimizer if one is set
+     * @param weightGradients gradient sums shaped like weights
+     * @param biasGradients gradient sums shaped like biases
+     * @param eta learning rate
+     * @param count number of samples the gradients are summed over
+     */
+    private void applyGradients(double[][] weightGradients, double[][] biasGradients, double eta, int count){
+        TrainingEvents.Update event = TrainingEvents.Update.start();
+        if(optimizer != null){
+            optimizer.apply(weights, biases, weightGradients, biasGradients, pruningMask, 1d / count, eta);
+            modified();
+            event.finish(count, eta);
+            return;
+        }
+        double scale = - eta / count;
+        boolean[][] mask = pruningMask;
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            double[] w = weights[layer];
+            double[] gw = weightGradients[layer];
+            if(mask == null){
+                for(int i = 0; i < w.length; i++){
+                    w[i] += scale * gw[i];
+                }
+            }
+            else{
+                boolean[] keep = mask[layer];
+                for(int i = 0; i < w.length; i++){
+                    if(keep[i]) w[i] += scale * gw[i];
+                }
+            }
+            double[] b = biases[layer];
+            double[] gb = biasGradients[layer];
+            for(int i = 0; i < b.length; i++){
+                b[i] += scale * gb[i];
+            }
+        }
+        modified();
+        event.finish(count, eta);
+    }
+
+    /**
+     * Stores f(x) and its derivative at index i
+     */
+    private static void activate(Activation f, double[] out, double[] d, int i, double x){
+        double a = f.apply(x);
+        out[i] = a;
+        if(d != null) d[i] = f.derivative(a);
+    }
+
+    /**
+     * Allocates the trainBatch buffers if they cannot hold batchSize samples
+     * @param batchSize number of samples the buffers need to hold
+     */
+    private void ensureBatchCapacity(int batchSize){
+        if(batchSize <= batchCapacity) return;
+        batchOutputs = new double[NETWORK_SIZE][];
+        batchDerivatives = new double[NETWORK_SIZE][];
+        batchErrors = new double[NETWORK_SIZE][];
+        for(int layer = 0; layer < NETWORK_SIZE; layer++){
+            batchOutputs[layer] = new double[batchSize * LAYER_SIZES[layer]];
+            batchDerivatives[layer] = new double[batchSize * LAYER_SIZES[layer]];
+            batchErrors[layer] = new double[batchSize * LAYER_SIZES[layer]];
+        }
+        batchTargets = new double[batchSize * OUTPUT_SIZE];
+        if(weightGradients == null){
+            weightGradients = new double[NETWORK_SIZE][];
+            biasGradients = new double[NETWORK_SIZE][];
+            for(int layer = 0; layer < NETWORK_SIZE; layer++){
+                weightGradients[layer] = new double[weights[layer].length];
+                biasGradients[layer] = new double[biases[layer].length];
+            }
+        }
+        batchCapacity = batchSize;
+    }
+
+    /**
+     * Copies the flat output values into the public neuron view
+     */
+    private void syncNeurons(){
+        for(int layer = 0; layer < NETWORK_SIZE; layer++){
+            for(int neuron = 0; neuron < LAYER_SIZES[layer]; neuron++){
+                neurons[layer][neuron].aOutput = outputs[layer][neuron];
+            }
+        }
+    }
+
+    /**
+     * Sets the update rule used by train, trainBatch and synchronous parallel training
+     * @param optimizer optimizer for this network, null for plain SGD
+     * @throws IllegalStateException if the optimizer was already set on another network
+     */
+    public void setOptimizer(Optimizer optimizer){
+        if(optimizer != null) optimizer.init(this);
+        this.optimizer = optimizer;
+    }
+
+    public Optimizer getOptimizer(){
+        return optimizer;
+    }
+
+    /**
+     * Sets the metrics to record the duration of every infer in
+     * @param metrics metrics, possibly shared with other networks and trainers, null to stop recording
      */
-    private double sigmoid(double x){
-        return 1d / (1 + Math.exp(-x));
+    public void setMetrics(Metrics metrics){
+        this.metrics = metrics;
     }
 
     public double getMSE(){
         return MSE;
     }
 
+    /**
+     * @return number of changes made to the weights and biases so far, by training or by restoring them
+     */
+    @Override
+    public long getVersion(){
+        return version;
+    }
+
+    /**
+     * Marks the weights or biases as changed, for code that writes them directly.
+     * Hogwild threads may lose each other's increments, the version still moves on.
+     */
+    void modified(){
+        version++;
+    }
+
+    /**
+     * Zeroes the weights outside the pruning mask again. The training updates never write them, this is for
+     * training that may have started before the mask was set, like Hogwild workers already running.
+     */
+    void applyPruningMask(){
+        boolean[][] mask = pruningMask;
+        if(mask == null) return;
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            double[] w = weights[layer];
+            boolean[] keep = mask[layer];
+            for(int i = 0; i < w.length; i++){
+                if(!keep[i]) w[i] = 0;
+            }
+        }
+        modified();
+    }
+
+    /**
+     * Zeroes the weights outside the mask, every later training update leaves them at zero until the mask is cleared
+     * @param mask mask[layer] shaped like weights[layer], true for the weights to keep, null to clear it
+     */
+    void setPruningMask(boolean[][] mask){
+        pruningMask = mask;
+        if(mask != null) applyPruningMask();
+        else modified();
+    }
+
+    boolean[][] getPruningMask(){
+        return pruningMask;
+    }
+
+    @Override
+    public int getInputSize(){
+        return INPUT_SIZE;
+    }
+
+    @Override
+    public int getOutputSize(){
+        return OUTPUT_SIZE;
+    }
+
     /**
      * Saves the current state of the Network.
      *
@@ -181,13 +994,15 @@ public class Network {
      *          double derivative
      *          double bias
      * double MSE
+     * Activation[] activations of every layer after the input layer
+     *     (optional, files without this line load with all SIGMOID layers)
      *
      * @param pathname where to save the current state of the Network
      * @throws IOException in the case the file cannot be created
      */
     public void saveNetwork(String pathname) throws IOException {
         File file = new File(pathname);
-        FileWriter fw = new FileWriter(file);
+        BufferedWriter fw = new BufferedWriter(new FileWriter(file));
 
 
         // Recording int[] LAYER_SIZES
@@ -200,21 +1015,22 @@ public class Network {
         }
 
         // Recording Neuron[][] neurons
-        for(int layer = 0; layer < this.neurons.length; layer++){
-            for(int neuron = 0; neuron < this.neurons[layer].length; neuron++){
+        for(int layer = 0; layer < NETWORK_SIZE; layer++){
+            int prevSize = layer == 0 ? 0 : LAYER_SIZES[layer - 1];
+            for(int neuron = 0; neuron < LAYER_SIZES[layer]; neuron++){
 
                 // Recording double aOutput
-                fw.write((Double) this.neurons[layer][neuron].aOutput + "\n");
+                fw.write((Double) this.outputs[layer][neuron] + "\n");
 
                 // Recording double[] weight
                 if(layer > 0) {
-                    int weightLength = this.neurons[layer][neuron].weight.length;
-                    for (int prevNeuron = 0; prevNeuron < weightLength; prevNeuron++) {
-                        if (prevNeuron == weightLength - 1) {
-                            fw.write((Double) this.neurons[layer][neuron].weight[prevNeuron] + "\n");
+                    int row = neuron * prevSize;
+                    for (int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++) {
+                        if (prevNeuron == prevSize - 1) {
+                            fw.write((Double) this.weights[layer][row + prevNeuron] + "\n");
                             continue;
                         }
-                        fw.write((Double) this.neurons[layer][neuron].weight[prevNeuron] + ", ");
+                        fw.write((Double) this.weights[layer][row + prevNeuron] + ", ");
                     }
                 }
                 else{
@@ -222,19 +1038,24 @@ public class Network {
                 }
 
                 // Recording double backprop_error
-                fw.write((Double) this.neurons[layer][neuron].backprop_error + "\n");
+                fw.write((Double) this.errors[layer][neuron] + "\n");
 
                 // Recording double derivative
-                fw.write((Double) this.neurons[layer][neuron].derivative + "\n");
+                fw.write((Double) this.derivatives[layer][neuron] + "\n");
 
                 // Recording double bias
-                fw.write((Double) this.neurons[layer][neuron].bias + "\n");
+                fw.write((Double) this.biases[layer][neuron] + "\n");
             }
         }
 
         // Recording double MSE
         fw.write((Double) this.MSE + "\n");
 
+        // Recording Activation[] activations
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            fw.write(this.activations[layer] + (layer == NETWORK_SIZE - 1 ? "\n" : ", "));
+        }
+
         fw.close();
     }
 
@@ -251,146 +1072,198 @@ public class Network {
         // Loading the int[] LAYER_SIZES from file. Network gets instantiated with LAYER_SIZES
         // Constructor handles the recovery of the states of INPUT_SIZE, OUTPUT_SIZE, NETWORK_SIZE
         Network loadedNetwork = new Network(Arrays.stream(sc.nextLine().split(", ")).
-                mapToInt(Integer::parseInt).toArray());
+                mapToInt(Integer::parseInt).toArray(), null, Kernels.DEFAULT, false);
 
         // Loads the neurons into the network
-        for(int layer = 0; layer < loadedNetwork.neurons.length; layer++){
-            for(int neuron = 0; neuron < loadedNetwork.neurons[layer].length; neuron++){
+        for(int layer = 0; layer < loadedNetwork.NETWORK_SIZE; layer++){
+            int prevSize = layer == 0 ? 0 : loadedNetwork.LAYER_SIZES[layer - 1];
+            for(int neuron = 0; neuron < loadedNetwork.LAYER_SIZES[layer]; neuron++){
 
                 // Loads the output for each neuron
-                loadedNetwork.neurons[layer][neuron].aOutput = Double.parseDouble(sc.nextLine());
+                loadedNetwork.outputs[layer][neuron] = Double.parseDouble(sc.nextLine());
 
                 // Loads the weights between the current neuron and all neurons in the previous layer for each neuron
                 String line = sc.nextLine();
                 if(!line.equals("")) {
-                    loadedNetwork.neurons[layer][neuron].weight = Arrays.stream(line.split(", ")).
-                            mapToDouble(Double::parseDouble).toArray();
+                    double[] row = Arrays.stream(line.split(", ")).mapToDouble(Double::parseDouble).toArray();
+                    System.arraycopy(row, 0, loadedNetwork.weights[layer], neuron * prevSize, prevSize);
                 }
 
                 // Loads the backpropagation error for each neuron
-                loadedNetwork.neurons[layer][neuron].backprop_error = Double.parseDouble(sc.nextLine());
+                loadedNetwork.errors[layer][neuron] = Double.parseDouble(sc.nextLine());
 
                 // Loads the derivative for each neuron
-                loadedNetwork.neurons[layer][neuron].derivative = Double.parseDouble(sc.nextLine());
+                loadedNetwork.derivatives[layer][neuron] = Double.parseDouble(sc.nextLine());
 
                 // Loads the bias for each neuron
-                loadedNetwork.neurons[layer][neuron].bias = Double.parseDouble(sc.nextLine());
+                loadedNetwork.biases[layer][neuron] = Double.parseDouble(sc.nextLine());
             }
         }
+        loadedNetwork.syncNeurons();
         loadedNetwork.MSE = Double.parseDouble(sc.nextLine());
+
+        // Loads the activation functions, older files do not have them
+        if(sc.hasNextLine()){
+            String[] names = sc.nextLine().split(", ");
+            for(int layer = 1; layer < loadedNetwork.NETWORK_SIZE; layer++){
+                loadedNetwork.activations[layer] = Activation.valueOf(names[layer - 1]);
+            }
+        }
         sc.close();
         return loadedNetwork;
     }
 
+    /**
+     * Saves the weights, biases and activation functions of the Network in the binary checkpoint format,
+     * see Checkpoint for the layout. Much smaller and faster to load than saveNetwork.
+     * @param pathname where to save the Network
+     * @throws IOException in the case the file cannot be written
+     */
+    public void saveBinary(String pathname) throws IOException {
+        Checkpoint.write(this, pathname);
+    }
+
+    /**
+     * Same as saveBinary(String), optionally with every weight and bias rounded to a float, which halves the size
+     * of the checkpoint. The network itself keeps training and inferring in double precision.
+     * @param pathname where to save the Network
+     * @param singlePrecision whether to store the values as float32 instead of float64
+     * @throws IOException in the case the file cannot be written
+     */
+    public void saveBinary(String pathname, boolean singlePrecision) throws IOException {
+        Checkpoint.write(this, pathname, singlePrecision);
+    }
+
+    /**
+     * Loads a Network from a binary checkpoint of either precision written by saveBinary
+     * @param pathname from where to load a Network
+     * @return loaded Network
+     * @throws IOException in the case the file cannot be read or is not a valid checkpoint
+     */
+    public static Network loadBinary(String pathname) throws IOException {
+        return Checkpoint.readNetwork(pathname);
+    }
+
     /**
      * Uses the output layer of a trained Network to give an interpretation of the sensor data.
      * Currently accounts only for distance sensors.
      * Each sensor data value from the input layer corresponds to three output values.
      * e.g. LEFT_DISTANCE --> 1. FAR  2. NEAR  3. BLOCKING
      * Considering that the Network is properly trained, one of the three values will be above the threshold.
-     * In which case a message will be recorded at output_array[0] stating that the robot
+     * In which case a message will be recorded at output_array[sensor] stating that the robot
      * is either far, near, or being blocked by some obstacle.
+     * Allocates a new array every call, think(SensorDecoder.Readings) decodes the same states without allocating.
      * @param threshold some confidence value
-     * @return array of messages informing the KNN of the current state of events regarding distance
+     * @return array of messages informing the KNN of the current state of events regarding distance,
+     * null for a sensor none of whose outputs is above the threshold
      */
     public String[] getMessage(double threshold){
-        String[] out = new String[4];
-        String left = "OBSTACLE-LEFT UNKNOWN";
-        String forward = "OBSTACLE-FORWARD UNKNOWN";
-        String right = "OBSTACLE-RIGHT UNKNOWN";
-        String back = "OBSTACLE-BACK UNKNOWN";
-        Neuron[] n = this.neurons[NETWORK_SIZE - 1];
-        for(int neuron = 0; neuron < n.length; neuron++){
-            if(n[neuron].aOutput >= threshold){
-                if(neuron < 3){
-                    switch(neuron){
-                        case 0:
-                            left = "OBSTACLE-LEFT FAR";
-                            break;
-                        case 1:
-                            left = "OBSTACLE-LEFT NEAR";
-                            break;
-                        case 2:
-                            left = "OBSTACLE-LEFT BLOCKING";
-                            break;
-                    }
-                    out[0] = left;
-                }
-                else if(neuron < 6){
-                    switch(neuron){
-                        case 3:
-                            forward = "OBSTACLE-FORWARD FAR";
-                            break;
-                        case 4:
-                            forward = "OBSTACLE-FORWARD NEAR";
-                            break;
-                        case 5:
-                            forward = "OBSTACLE-FORWARD BLOCKING";
-                            break;
-                    }
-                    out[1] = forward;
-                }
-                else if(neuron < 9){
-                    switch(neuron){
-                        case 6:
-                            right = "OBSTACLE-RIGHT FAR";
-                            break;
-                        case 7:
-                            right = "OBSTACLE-RIGHT NEAR";
-                            break;
-                        case 8:
-                            right = "OBSTACLE-RIGHT BLOCKING";
-                            break;
-                    }
-                    out[2] = right;
-                }
-                else if(neuron < 12){
-                    System.out.println("Inside back-sensor interpreter");
-                    switch(neuron){
-                        case 9:
-                            back = "OBSTACLE-BACK FAR";
-                            break;
-                        case 10:
-                            back = "OBSTACLE-BACK NEAR";
-                            break;
-                        case 11:
-                            back = "OBSTACLE-BACK BLOCKING";
-                            break;
-                    }
-                    out[3] = back;
-                }
-            }
-        }
-        return out;
+        SensorDecoder decoder = SensorDecoder.DISTANCE;
+        return decoder.messages(decode(decoder, threshold, decoder.newReadings()), new String[decoder.SENSORS]);
+    }
+
+    /**
+     * Decodes the output layer of the last feedForward into a state per sensor without allocating
+     * @param decoder layout of the outputs
+     * @param threshold confidence an output needs to set its sensor's state
+     * @param readings receives the states, from decoder.newReadings() and reused across calls
+     * @return readings
+     */
+    public SensorDecoder.Readings decode(SensorDecoder decoder, double threshold, SensorDecoder.Readings readings){
+        return decoder.decode(outputs[NETWORK_SIZE - 1], 0, threshold, readings);
     }
 
     public String[] think(){
 
-        return getMessage(0.98);
+        return getMessage(THINK_THRESHOLD);
     }
 
+    /**
+     * Same decision as think(), written into the distance sensor states instead of a new array of messages,
+     * for the control loop to call every tick
+     * @param readings from SensorDecoder.DISTANCE.newReadings()
+     * @return readings
+     */
+    public SensorDecoder.Readings think(SensorDecoder.Readings readings){
+        return decode(SensorDecoder.DISTANCE, THINK_THRESHOLD, readings);
+    }
 
-    static public class Neuron{
-        /**
-         * Output value of the neuron
-         */
-        public double aOutput;
+
+    /**
+     * Buffers of one training thread: the intermediate values of a single sample and the gradient sums
+     * of all samples seen since the last clear.
+     */
+    static class Workspace{
+        final double[][] outputs;
+        final double[][] derivatives;
+        final double[][] errors;
+        final double[][] weightGradients;
+        final double[][] biasGradients;
         /**
-         * Weight between this neuron and all previous neurons connected to it
+         * Sum of the squared output errors and number of samples since the last clear
          */
-        private double[] weight;
+        double squaredError;
+        int samples;
+
+        Workspace(Network network){
+            int size = network.NETWORK_SIZE;
+            outputs = new double[size][];
+            derivatives = new double[size][];
+            errors = new double[size][];
+            weightGradients = new double[size][];
+            biasGradients = new double[size][];
+            for(int layer = 0; layer < size; layer++){
+                outputs[layer] = new double[network.LAYER_SIZES[layer]];
+                derivatives[layer] = new double[network.LAYER_SIZES[layer]];
+                errors[layer] = new double[network.LAYER_SIZES[layer]];
+                weightGradients[layer] = new double[network.weights[layer].length];
+                biasGradients[layer] = new double[network.biases[layer].length];
+            }
+        }
+
         /**
-         * Error between actual and target values for each output
+         * Resets the gradient and error sums
          */
-        private double backprop_error;
+        void clear(){
+            for(int layer = 0; layer < weightGradients.length; layer++){
+                Arrays.fill(weightGradients[layer], 0);
+                Arrays.fill(biasGradients[layer], 0);
+            }
+            squaredError = 0;
+            samples = 0;
+        }
+
         /**
-         * Sigmoid derivative for each neuron (output * (1 - output))
+         * Adds the gradient and error sums of another workspace to this one
+         * @param other workspace of the same network
          */
-        private double derivative;
+        void add(Workspace other){
+            for(int layer = 0; layer < weightGradients.length; layer++){
+                double[] gw = weightGradients[layer];
+                double[] ogw = other.weightGradients[layer];
+                for(int i = 0; i < gw.length; i++){
+                    gw[i] += ogw[i];
+                }
+                double[] gb = biasGradients[layer];
+                double[] ogb = other.biasGradients[layer];
+                for(int i = 0; i < gb.length; i++){
+                    gb[i] += ogb[i];
+                }
+            }
+            squaredError += other.squaredError;
+            samples += other.samples;
+        }
+    }
+
+    /**
+     * Read-only view of a single neuron. The network state itself is kept in the flat per-layer arrays,
+     * the output value is copied here after every feedForward.
+     */
+    static public class Neuron{
         /**
-         * Given bias to be used in the summation function per output
+         * Output value of the neuron
          */
-        private double bias;
+        public double aOutput;
     }
 
     /**
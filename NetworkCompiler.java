@@ -0,0 +1,321 @@
+package nn.DenisAleksandrov;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles a trained Network into a class specialised for its shape and weights, loaded at runtime as a hidden
+ * class and used through InferenceModel.
+ *
+ * The generic forward pass reads LAYER_SIZES, the weight arrays and the activation of every layer on every call.
+ * The generated class has the layer sizes baked in as constants and, for small layers, every weight written into
+ * the code as a literal: each neuron becomes one expression of the previous layer's outputs held in local
+ * variables, summed in four independent chains so the multiplications overlap. Networks with at most
+ * SCALAR_LIMIT weights are unrolled into a single method with no arrays at all between the layers.
+ * Larger networks get one method per layer; layers with more than UNROLL_LIMIT weights loop over weight arrays
+ * handed to the class as static finals through its class data, with Kernels.DEFAULT and constant loop bounds.
+ * Both limits keep every generated method below the 8000 bytes of bytecode the JIT still compiles.
+ *
+ * The compiled model is a snapshot: training the network afterwards does not change it, compile it again.
+ * Outputs match Network.infer up to the rounding of the different summation order.
+ * The source is compiled in memory with javax.tools, so this needs a JDK at runtime rather than a JRE.
+ */
+public final class NetworkCompiler {
+    /**
+     * Largest number of weights of a network compiled into a single method with only local variables
+     */
+    static final int SCALAR_LIMIT = 800;
+    /**
+     * Largest number of weights of a layer written into the code, larger layers loop over arrays
+     */
+    static final int UNROLL_LIMIT = 640;
+
+    private static final String PACKAGE = NetworkCompiler.class.getPackageName();
+    private static final String CLASS_NAME = "CompiledNetwork";
+
+    private NetworkCompiler(){
+    }
+
+    /**
+     * Compiles the network's current weights into a specialised model
+     * @param network trained network
+     * @return model computing the same function as network.infer
+     * @throws IllegalStateException in the case no Java compiler is available or the generated class fails
+     */
+    public static InferenceModel compile(Network network){
+        String source = source(network);
+        byte[] bytes = javac(source);
+        double[][] weights = new double[network.NETWORK_SIZE][];
+        double[][] biases = new double[network.NETWORK_SIZE][];
+        for(int layer = 1; layer < network.NETWORK_SIZE; layer++){
+            weights[layer] = network.weights[layer].clone();
+            biases[layer] = network.biases[layer].clone();
+        }
+        int[] layerSizes = network.LAYER_SIZES.clone();
+        ThreadLocal<double[][]> scratch = ThreadLocal.withInitial(() -> newScratch(layerSizes));
+        try{
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(bytes, new Object[]{weights, biases, scratch}, true);
+            return (InferenceModel) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        }
+        catch(Throwable e){
+            throw new IllegalStateException("Cannot load the compiled network", e);
+        }
+    }
+
+    /**
+     * One array per hidden layer, as Network.newScratch
+     */
+    private static double[][] newScratch(int[] layerSizes){
+        double[][] scratch = new double[layerSizes.length][];
+        for(int layer = 1; layer < layerSizes.length - 1; layer++){
+            scratch[layer] = new double[layerSizes[layer]];
+        }
+        return scratch;
+    }
+
+    /**
+     * Generates the Java source of the specialised class
+     * @param network trained network
+     * @return source of class CompiledNetwork in this package
+     */
+    static String source(Network network){
+        int[] sizes = network.LAYER_SIZES;
+        int last = network.NETWORK_SIZE - 1;
+        long total = 0;
+        for(int layer = 1; layer <= last; layer++){
+            total += network.weights[layer].length;
+        }
+        StringBuilder code = new StringBuilder(1 << 16);
+        code.append("package ").append(PACKAGE).append(";\n\n");
+        code.append("final class ").append(CLASS_NAME).append(" implements InferenceModel {\n");
+        if(total <= SCALAR_LIMIT){
+            code.append("    @Override\n");
+            code.append("    public double[] infer(double[] input, double[] output){\n");
+            code.append("        if(input.length != ").append(sizes[0]).append(" || output.length < ")
+                    .append(sizes[last]).append(") return null;\n");
+            for(int i = 0; i < sizes[0]; i++){
+                code.append("        double v0_").append(i).append(" = input[").append(i).append("];\n");
+            }
+            for(int layer = 1; layer <= last; layer++){
+                String prev = "v" + (layer - 1) + "_";
+                for(int neuron = 0; neuron < sizes[layer]; neuron++){
+                    code.append(layer == last ? "        output[" + neuron + "] = "
+                            : "        double v" + layer + "_" + neuron + " = ");
+                    neuron(code, network, layer, neuron, prev);
+                }
+            }
+            code.append("        return output;\n");
+            code.append("    }\n");
+        }
+        else{
+            code.append("    private static final double[][] WEIGHTS;\n");
+            code.append("    private static final double[][] BIASES;\n");
+            code.append("    private static final ThreadLocal<double[][]> SCRATCH;\n");
+            code.append("    private static final Kernels KERNELS = Kernels.DEFAULT;\n");
+            code.append("    static{\n");
+            code.append("        try{\n");
+            code.append("            Object[] data = java.lang.invoke.MethodHandles.classData(")
+                    .append("java.lang.invoke.MethodHandles.lookup(), \"_\", Object[].class);\n");
+            code.append("            WEIGHTS = (double[][]) data[0];\n");
+            code.append("            BIASES = (double[][]) data[1];\n");
+            code.append("            @SuppressWarnings(\"unchecked\")\n");
+            code.append("            ThreadLocal<double[][]> scratch = (ThreadLocal<double[][]>) data[2];\n");
+            code.append("            SCRATCH = scratch;\n");
+            code.append("        }\n");
+            code.append("        catch(IllegalAccessException e){\n");
+            code.append("            throw new ExceptionInInitializerError(e);\n");
+            code.append("        }\n");
+            code.append("    }\n");
+            for(int layer = 1; layer <= last; layer++){
+                if(network.weights[layer].length > UNROLL_LIMIT){
+                    code.append("    private static final double[] W").append(layer).append(" = WEIGHTS[")
+                            .append(layer).append("];\n");
+                    code.append("    private static final double[] B").append(layer).append(" = BIASES[")
+                            .append(layer).append("];\n");
+                }
+            }
+            code.append("\n    @Override\n");
+            code.append("    public double[] infer(double[] input, double[] output){\n");
+            code.append("        if(input.length != ").append(sizes[0]).append(" || output.length < ")
+                    .append(sizes[last]).append(") return null;\n");
+            code.append("        double[][] scratch = SCRATCH.get();\n");
+            for(int layer = 1; layer <= last; layer++){
+                code.append("        layer").append(layer).append('(')
+                        .append(layer == 1 ? "input" : "scratch[" + (layer - 1) + "]").append(", ")
+                        .append(layer == last ? "output" : "scratch[" + layer + "]").append(");\n");
+            }
+            code.append("        return output;\n");
+            code.append("    }\n");
+            for(int layer = 1; layer <= last; layer++){
+                int prevSize = sizes[layer - 1];
+                code.append("\n    private static void layer").append(layer).append("(double[] in, double[] out){\n");
+                if(network.weights[layer].length > UNROLL_LIMIT){
+                    code.append("        for(int neuron = 0, row = 0; neuron < ").append(sizes[layer])
+                            .append("; neuron++, row += ").append(prevSize).append("){\n");
+                    code.append("            double sum = KERNELS.dot(in, 0, W").append(layer).append(", row, ")
+                            .append(prevSize).append(");\n");
+                    code.append("            out[neuron] = Activation.").append(network.activations[layer])
+                            .append(".apply(sum + B").append(layer).append("[neuron]);\n");
+                    code.append("        }\n");
+                }
+                else{
+                    for(int i = 0; i < prevSize; i++){
+                        code.append("        double x").append(i).append(" = in[").append(i).append("];\n");
+                    }
+                    for(int neuron = 0; neuron < sizes[layer]; neuron++){
+                        code.append("        out[").append(neuron).append("] = ");
+                        neuron(code, network, layer, neuron, "x");
+                    }
+                }
+                code.append("    }\n");
+            }
+        }
+        code.append("\n    @Override\n");
+        code.append("    public int getInputSize(){\n");
+        code.append("        return ").append(sizes[0]).append(";\n");
+        code.append("    }\n");
+        code.append("\n    @Override\n");
+        code.append("    public int getOutputSize(){\n");
+        code.append("        return ").append(sizes[last]).append(";\n");
+        code.append("    }\n");
+        code.append("}\n");
+        return code.toString();
+    }
+
+    /**
+     * Appends the activation of one neuron over the weighted sum of the previous layer's variables, prev + index,
+     * in four independent chains of terms, e.g. Activation.SIGMOID.apply((0.5 * x0 + -0.25 * x4) + (...) + 0.1);
+     */
+    private static void neuron(StringBuilder code, Network network, int layer, int neuron, String prev){
+        int prevSize = network.LAYER_SIZES[layer - 1];
+        int row = neuron * prevSize;
+        int chains = Math.min(4, prevSize);
+        code.append("Activation.").append(network.activations[layer]).append(".apply(");
+        for(int chain = 0; chain < chains; chain++){
+            code.append(chain == 0 ? "(" : " + (");
+            for(int prevNeuron = chain; prevNeuron < prevSize; prevNeuron += chains){
+                if(prevNeuron != chain) code.append(" + ");
+                code.append(literal(network.weights[layer][row + prevNeuron])).append(" * ").append(prev)
+                        .append(prevNeuron);
+            }
+            code.append(')');
+        }
+        code.append(" + ").append(literal(network.biases[layer][neuron])).append(");\n");
+    }
+
+    /**
+     * @return Java expression of the exact value
+     */
+    private static String literal(double value){
+        if(Double.isNaN(value)) return "Double.NaN";
+        if(Double.isInfinite(value)) return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        return "(" + value + ")";
+    }
+
+    /**
+     * Compiles the source in memory
+     * @return class file of CompiledNetwork
+     */
+    private static byte[] javac(String source){
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if(compiler == null) throw new IllegalStateException("No Java compiler, run on a JDK to compile networks");
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, null);
+        JavaFileManager files = new ForwardingJavaFileManager<>(standard){
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                       FileObject sibling){
+                return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension),
+                        kind){
+                    @Override
+                    public OutputStream openOutputStream(){
+                        return classFile;
+                    }
+                };
+            }
+        };
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + PACKAGE.replace('.', '/') + "/"
+                + CLASS_NAME + ".java"), JavaFileObject.Kind.SOURCE){
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors){
+                return source;
+            }
+        };
+        List<String> options = List.of("-classpath", System.getProperty("java.class.path"), "-g:none", "-proc:none",
+                "-nowarn");
+        boolean compiled = compiler.getTask(null, files, diagnostics, options, null, List.of(file)).call();
+        try{
+            files.close();
+        }
+        catch(IOException e){
+            // nothing was written to disk
+        }
+        if(!compiled){
+            StringBuilder message = new StringBuilder("Generated network does not compile:");
+            for(Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()){
+                message.append('\n').append(diagnostic.getMessage(null));
+            }
+            throw new IllegalStateException(message.toString());
+        }
+        return classFile.toByteArray();
+    }
+
+    /**
+     * Compiles networks of the benchmark shapes and compares their infer time with Network.
+     * Usage: NetworkCompiler [network-file], or NetworkCompiler --source network-file to print the generated class.
+     * The full comparison with warm-up, forks and allocation is Benchmark --filter infer
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length == 2 && args[0].equals("--source")){
+            System.out.print(source(InferenceServer.loadModel(args[1])));
+            return;
+        }
+        List<Network> networks = new ArrayList<>();
+        if(args.length > 0){
+            networks.add(InferenceServer.loadModel(args[0]));
+        }
+        else{
+            for(int[] shape : Benchmark.SHAPES){
+                networks.add(new Network(shape));
+            }
+        }
+        for(Network network : networks){
+            long start = System.nanoTime();
+            InferenceModel compiled = compile(network);
+            long compileMillis = (System.nanoTime() - start) / 1_000_000;
+            double[] input = new double[network.INPUT_SIZE];
+            for(int i = 0; i < input.length; i++){
+                input[i] = (i * 7 % 11) / 11.0;
+            }
+            double[] expected = network.infer(input, new double[network.OUTPUT_SIZE]);
+            double[] actual = compiled.infer(input, new double[network.OUTPUT_SIZE]);
+            double error = 0;
+            for(int i = 0; i < expected.length; i++){
+                error = Math.max(error, Math.abs(expected[i] - actual[i]));
+            }
+            System.out.printf("%s compiled in %d ms, largest difference %.1e: Network %.1f ns, compiled %.1f ns%n",
+                    Arrays.toString(network.LAYER_SIZES), compileMillis, error, Benchmark.inferNanos(network, input),
+                    Benchmark.inferNanos(compiled, input));
+        }
+    }
+}
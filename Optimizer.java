@@ -0,0 +1,293 @@
+package nn.DenisAleksandrov;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Update rule turning the gradients of a training step into changes of the weights and biases.
+ * Set one on a network with Network.setOptimizer, a network without one does plain SGD.
+ *
+ * Optimizers with per-parameter state keep it in arrays shaped like Network.weights and Network.biases,
+ * allocated when the optimizer is set on a network, so an optimizer instance belongs to the first network it is set
+ * on, even if another network has the same shape.
+ * HOGWILD training ignores the optimizer and always does plain SGD.
+ */
+public abstract class Optimizer {
+    /**
+     * state[k][2 * layer] and state[k][2 * layer + 1]: k-th state value of every weight and bias of a layer
+     */
+    double[][][] state;
+    /**
+     * Network the state belongs to, null until the optimizer is set on one
+     */
+    private Network owner;
+    /**
+     * Number of steps taken so far
+     */
+    long steps;
+
+    /**
+     * @return number of state values kept for every parameter
+     */
+    abstract int stateSize();
+
+    /**
+     * Updates one array of parameters
+     * @param param weights or biases of a layer
+     * @param grad gradient sums of param
+     * @param gradScale factor turning grad into the mean gradient
+     * @param eta learning rate
+     * @param slot index of the parameter array in state[k]
+     * @param keep keep[i]: whether param[i] survived pruning, null when every parameter is updated. Pruned
+     *             parameters and their state are left untouched.
+     */
+    abstract void update(double[] param, double[] grad, double gradScale, double eta, int slot, boolean[] keep);
+
+    /**
+     * Allocates the state for a network, keeps it if the optimizer is set on the same network again
+     * @throws IllegalStateException if the optimizer already belongs to another network
+     */
+    void init(Network network){
+        if(owner != null){
+            if(owner != network) throw new IllegalStateException("Optimizer already belongs to another network");
+            return;
+        }
+        owner = network;
+        state = new double[stateSize()][2 * network.NETWORK_SIZE][];
+        for(double[][] values : state){
+            for(int layer = 1; layer < network.NETWORK_SIZE; layer++){
+                values[2 * layer] = new double[network.weights[layer].length];
+                values[2 * layer + 1] = new double[network.biases[layer].length];
+            }
+        }
+    }
+
+    /**
+     * Takes one step on all weights and biases
+     * @param weights Network.weights
+     * @param biases Network.biases
+     * @param weightGradients gradient sums shaped like weights
+     * @param biasGradients gradient sums shaped like biases
+     * @param pruningMask Network's pruning mask, shaped like weights, null when not pruned
+     * @param gradScale factor turning the sums into mean gradients, 1 / number of samples
+     * @param eta learning rate
+     */
+    void apply(double[][] weights, double[][] biases, double[][] weightGradients, double[][] biasGradients,
+               boolean[][] pruningMask, double gradScale, double eta){
+        steps++;
+        for(int layer = 1; layer < weights.length; layer++){
+            update(weights[layer], weightGradients[layer], gradScale, eta, 2 * layer,
+                    pruningMask == null ? null : pruningMask[layer]);
+            update(biases[layer], biasGradients[layer], gradScale, eta, 2 * layer + 1, null);
+        }
+    }
+
+    /**
+     * Plain stochastic gradient descent, p -= eta * g
+     */
+    public static class SGD extends Optimizer {
+        @Override
+        int stateSize(){
+            return 0;
+        }
+
+        @Override
+        void update(double[] param, double[] grad, double gradScale, double eta, int slot, boolean[] keep){
+            double scale = - eta * gradScale;
+            for(int i = 0; i < param.length; i++){
+                if(keep != null && !keep[i]) continue;
+                param[i] += scale * grad[i];
+            }
+        }
+    }
+
+    /**
+     * SGD with momentum: v = beta * v + g, p -= eta * v
+     */
+    public static class Momentum extends Optimizer {
+        private final double beta;
+
+        /**
+         * @param beta fraction of the previous velocity kept every step, typically 0.9
+         */
+        public Momentum(double beta){
+            this.beta = beta;
+        }
+
+        @Override
+        int stateSize(){
+            return 1;
+        }
+
+        @Override
+        void update(double[] param, double[] grad, double gradScale, double eta, int slot, boolean[] keep){
+            double[] v = state[0][slot];
+            for(int i = 0; i < param.length; i++){
+                if(keep != null && !keep[i]) continue;
+                v[i] = beta * v[i] + gradScale * grad[i];
+                param[i] -= eta * v[i];
+            }
+        }
+    }
+
+    /**
+     * RMSProp: s = rho * s + (1 - rho) * g^2, p -= eta * g / (sqrt(s) + epsilon)
+     */
+    public static class RMSProp extends Optimizer {
+        private final double rho;
+        private final double epsilon;
+
+        /**
+         * @param rho decay of the mean squared gradient, typically 0.9
+         * @param epsilon added to the root mean square to avoid dividing by zero, typically 1e-8
+         */
+        public RMSProp(double rho, double epsilon){
+            this.rho = rho;
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        int stateSize(){
+            return 1;
+        }
+
+        @Override
+        void update(double[] param, double[] grad, double gradScale, double eta, int slot, boolean[] keep){
+            double[] s = state[0][slot];
+            for(int i = 0; i < param.length; i++){
+                if(keep != null && !keep[i]) continue;
+                double g = gradScale * grad[i];
+                s[i] = rho * s[i] + (1 - rho) * g * g;
+                param[i] -= eta * g / (Math.sqrt(s[i]) + epsilon);
+            }
+        }
+    }
+
+    /**
+     * Adam: m = beta1 * m + (1 - beta1) * g, v = beta2 * v + (1 - beta2) * g^2,
+     * p -= eta * m^ / (sqrt(v^) + epsilon) with the bias corrected m^ and v^
+     */
+    public static class Adam extends Optimizer {
+        private final double beta1;
+        private final double beta2;
+        private final double epsilon;
+        private double correction1;
+        private double correction2;
+
+        /**
+         * Adam with the usual beta1 = 0.9, beta2 = 0.999, epsilon = 1e-8
+         */
+        public Adam(){
+            this(0.9, 0.999, 1e-8);
+        }
+
+        /**
+         * @param beta1 decay of the mean gradient
+         * @param beta2 decay of the mean squared gradient
+         * @param epsilon added to the root mean square to avoid dividing by zero
+         */
+        public Adam(double beta1, double beta2, double epsilon){
+            this.beta1 = beta1;
+            this.beta2 = beta2;
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        int stateSize(){
+            return 2;
+        }
+
+        @Override
+        void apply(double[][] weights, double[][] biases, double[][] weightGradients, double[][] biasGradients,
+                   boolean[][] pruningMask, double gradScale, double eta){
+            correction1 = 1 / (1 - Math.pow(beta1, steps + 1));
+            correction2 = 1 / (1 - Math.pow(beta2, steps + 1));
+            super.apply(weights, biases, weightGradients, biasGradients, pruningMask, gradScale, eta);
+        }
+
+        @Override
+        void update(double[] param, double[] grad, double gradScale, double eta, int slot, boolean[] keep){
+            double[] m = state[0][slot];
+            double[] v = state[1][slot];
+            for(int i = 0; i < param.length; i++){
+                if(keep != null && !keep[i]) continue;
+                double g = gradScale * grad[i];
+                m[i] = beta1 * m[i] + (1 - beta1) * g;
+                v[i] = beta2 * v[i] + (1 - beta2) * g * g;
+                param[i] -= eta * m[i] * correction1 / (Math.sqrt(v[i] * correction2) + epsilon);
+            }
+        }
+    }
+
+    /**
+     * Compares the number of updates each optimizer and schedule needs to bring the mean MSE of an epoch
+     * below a target, against fixed-eta SGD. Runs on the OR data set and on a sensor recording
+     * (args[0], a data harvester file) or, without one, on random sensor-like data.
+     */
+    public static void main(String[] args) throws IOException {
+        Dataset or = Dataset.fromArrays(new double[][]{{0, 0}, {0, 1}, {1, 0}, {1, 1}},
+                new double[][]{{1, 0}, {0, 1}, {0, 1}, {0, 1}});
+        report("OR", or, new int[]{2, 2, 2, 2}, 1, 0.01, 100_000);
+        Dataset sensor;
+        if(args.length > 0){
+            sensor = Dataset.load(args[0]);
+        }
+        else{
+            Random random = new Random(7);
+            double[] inputs = new double[2000 * 4];
+            double[] targets = new double[2000 * 12];
+            for(int i = 0; i < 2000; i++){
+                int closest = 0;
+                for(int j = 0; j < 4; j++){
+                    inputs[i * 4 + j] = random.nextDouble();
+                    if(inputs[i * 4 + j] < inputs[i * 4 + closest]) closest = j;
+                }
+                // the three outputs of the direction with the closest wall
+                for(int j = 0; j < 3; j++){
+                    targets[i * 12 + closest * 3 + j] = 1;
+                }
+            }
+            sensor = new Dataset(inputs, targets, 4, 12);
+        }
+        report("sensor", sensor, new int[]{4, 6, 8, 10, 12}, 16, 0.05, 2_000);
+    }
+
+    private static void report(String name, Dataset data, int[] layerSizes, int batchSize, double target,
+                               int maxEpochs){
+        System.out.printf("%s: %d samples, batch %d, updates until the epoch MSE is below %.3f (median of 5)%n",
+                name, data.SIZE, batchSize, target);
+        String[] names = {"SGD eta 0.3", "SGD step decay", "Momentum 0.9", "RMSProp", "Adam", "Adam plateau",
+                "Adam cosine"};
+        for(int config = 0; config < names.length; config++){
+            long[] updates = new long[5];
+            for(int trial = 0; trial < updates.length; trial++){
+                Network network = new Network(layerSizes);
+                Optimizer optimizer;
+                Schedule schedule;
+                switch(config){
+                    case 0: optimizer = null; schedule = new Schedule.Constant(0.3); break;
+                    case 1: optimizer = null; schedule = new Schedule.StepDecay(1, 0.7, maxEpochs / 20); break;
+                    case 2: optimizer = new Momentum(0.9); schedule = new Schedule.Constant(0.1); break;
+                    case 3: optimizer = new RMSProp(0.9, 1e-8); schedule = new Schedule.Constant(0.01); break;
+                    case 4: optimizer = new Adam(); schedule = new Schedule.Constant(0.01); break;
+                    case 5: optimizer = new Adam(); schedule = new Schedule.ReduceOnPlateau(0.03, 0.5, 20, 1e-3, 1e-4); break;
+                    default: optimizer = new Adam(); schedule = new Schedule.Cosine(0.03, 1e-4, maxEpochs); break;
+                }
+                network.setOptimizer(optimizer);
+                Trainer trainer = new Trainer(network);
+                double mse = Double.NaN;
+                int epoch = 0;
+                while(epoch < maxEpochs && !(mse < target)){
+                    mse = trainer.trainEpoch(data, schedule.eta(epoch, mse), batchSize);
+                    epoch++;
+                }
+                long perEpoch = (data.SIZE + batchSize - 1) / batchSize;
+                updates[trial] = mse < target ? epoch * perEpoch : Long.MAX_VALUE;
+            }
+            Arrays.sort(updates);
+            long median = updates[updates.length / 2];
+            System.out.printf("  %-16s %s%n", names[config], median == Long.MAX_VALUE ? "not reached" : median);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package nn.DenisAleksandrov;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Magnitude pruning: zeroes the smallest weights of every layer down to a target sparsity, so the network can be
+ * stored and run as a SparseNetwork.
+ *
+ * prune does it in one shot. pruneIteratively raises the sparsity in steps and trains between them, letting the
+ * remaining weights make up for the removed ones, which keeps much more accuracy at high sparsity.
+ * Either way the network keeps a mask of the pruned weights and its updates skip them, along with their optimizer
+ * state, so training it further keeps it as sparse; release removes the mask. Biases are never pruned.
+ */
+public final class Pruner {
+    private Pruner(){
+    }
+
+    /**
+     * Zeroes the weights of smallest magnitude of every layer, the same share in each
+     * @param network network to prune, weights pruned before count towards the sparsity
+     * @param sparsity share of the weights of each layer to zero, from 0 to 1
+     * @return mask[layer][i], true for the weights kept, now the network's pruning mask
+     */
+    public static boolean[][] prune(Network network, double sparsity){
+        boolean[][] mask = new boolean[network.NETWORK_SIZE][];
+        mask[0] = new boolean[0];
+        for(int layer = 1; layer < network.NETWORK_SIZE; layer++){
+            mask[layer] = keep(network.weights[layer], sparsity);
+        }
+        network.setPruningMask(mask);
+        return mask;
+    }
+
+    /**
+     * @return true for every weight except the round(sparsity * length) of smallest magnitude
+     */
+    private static boolean[] keep(double[] w, double sparsity){
+        boolean[] keep = new boolean[w.length];
+        int pruned = (int) Math.round(Math.max(0, Math.min(1, sparsity)) * w.length);
+        if(pruned == 0){
+            Arrays.fill(keep, true);
+            return keep;
+        }
+        double[] magnitudes = new double[w.length];
+        for(int i = 0; i < w.length; i++){
+            magnitudes[i] = Math.abs(w[i]);
+        }
+        Arrays.sort(magnitudes);
+        double threshold = magnitudes[pruned - 1];
+        // weights equal to the threshold are pruned until the count is reached, the first ones first
+        int below = 0;
+        while(magnitudes[below] < threshold){
+            below++;
+        }
+        int ties = pruned - below;
+        for(int i = 0; i < w.length; i++){
+            double magnitude = Math.abs(w[i]);
+            keep[i] = magnitude > threshold || magnitude == threshold && ties-- <= 0;
+        }
+        return keep;
+    }
+
+    /**
+     * Prunes in steps, training the network between them. The sparsity of step s of n is
+     * sparsity * (1 - (1 - s / n)^3), large steps first while there are many small weights, small ones at the end.
+     * @param trainer trainer of the network to prune, with its optimizer, shuffling and listeners
+     * @param data samples to train on
+     * @param sparsity final share of the weights of each layer to zero, from 0 to 1
+     * @param steps number of pruning steps
+     * @param epochsPerStep epochs to train after every step
+     * @param schedule learning rate of the epochs after every step
+     * @param batchSize number of samples per weight update
+     * @return result of the training after the last step
+     */
+    public static TrainingResult pruneIteratively(Trainer trainer, Dataset data, double sparsity, int steps,
+                                                  int epochsPerStep, Schedule schedule, int batchSize){
+        Network network = trainer.getaNetwork();
+        TrainingResult result = null;
+        for(int step = 1; step <= steps; step++){
+            double remaining = 1 - (double) step / steps;
+            prune(network, sparsity * (1 - remaining * remaining * remaining));
+            result = trainer.train(data, schedule, epochsPerStep, batchSize, new StopCriteria());
+        }
+        return result;
+    }
+
+    /**
+     * Lets training change the pruned weights again, they stay zero until it does
+     * @param network pruned network
+     */
+    public static void release(Network network){
+        network.setPruningMask(null);
+    }
+
+    /**
+     * @param network any network
+     * @return share of its weights that are exactly zero
+     */
+    public static double sparsity(Network network){
+        long zeros = 0;
+        long all = 0;
+        for(int layer = 1; layer < network.NETWORK_SIZE; layer++){
+            for(double weight : network.weights[layer]){
+                if(weight == 0) zeros++;
+            }
+            all += network.weights[layer].length;
+        }
+        return (double) zeros / all;
+    }
+
+    /**
+     * Prints sparsity against accuracy against latency, pruning copies of a trained network to every sparsity
+     * both in one shot and iteratively, fine-tuned with Adam. For every operating point: the share of zero
+     * weights, the test MSE, the share of sensor states decoded from the outputs that match the targets, at the
+     * threshold of think and at 0.5, the time per infer of the SparseNetwork against the dense network, and the
+     * size of the SparseNetwork.
+     * @param trained network to prune, left unchanged
+     * @param train samples to fine-tune on
+     * @param test samples to measure on
+     * @param sparsities operating points to compare
+     * @param steps pruning steps of the iterative runs
+     * @param epochsPerStep epochs to train after every step
+     * @param schedule learning rate of the fine-tuning epochs
+     * @param batchSize number of samples per weight update
+     */
+    public static void report(Network trained, Dataset train, Dataset test, double[] sparsities, int steps,
+                              int epochsPerStep, Schedule schedule, int batchSize){
+        double[] input = Arrays.copyOf(test.inputs, trained.INPUT_SIZE);
+        double denseNanos = Benchmark.inferNanos(trained, input);
+        System.out.printf("%s, dense %.0f ns per infer, %d bytes%n", Arrays.toString(trained.LAYER_SIZES),
+                denseNanos, SparseNetwork.fromNetwork(copy(trained)).getModelBytes());
+        System.out.println("target  mode         zeros   test MSE   think   at 0.5   sparse ns  speed-up     bytes");
+        row(0, "dense", trained, test, input, denseNanos);
+        for(double sparsity : sparsities){
+            Network oneShot = copy(trained);
+            prune(oneShot, sparsity);
+            row(sparsity, "one-shot", oneShot, test, input, denseNanos);
+            Network iterative = copy(trained);
+            iterative.setOptimizer(new Optimizer.Adam());
+            Trainer trainer = new Trainer(iterative);
+            trainer.setShuffle(true, 1);
+            pruneIteratively(trainer, train, sparsity, steps, epochsPerStep, schedule, batchSize);
+            row(sparsity, "iterative", iterative, test, input, denseNanos);
+        }
+    }
+
+    private static void row(double target, String mode, Network network, Dataset test, double[] input,
+                            double denseNanos){
+        SparseNetwork sparse = SparseNetwork.fromNetwork(network);
+        double sparseNanos = Benchmark.inferNanos(sparse, input);
+        System.out.printf("%5.1f%%  %-9s  %6.1f%%  %9.2e  %5.1f%%  %6.1f%%  %10.0f  %7.2fx  %8d%n", 100 * target,
+                mode, 100 * sparsity(network), new Trainer(network).evaluate(test),
+                100 * decisionAccuracy(sparse, test, Network.THINK_THRESHOLD),
+                100 * decisionAccuracy(sparse, test, 0.5), sparseNanos, denseNanos / sparseNanos,
+                sparse.getModelBytes());
+    }
+
+    /**
+     * @return share of the sensor states decoded from the model's outputs that match the targets' states
+     */
+    private static double decisionAccuracy(InferenceModel model, Dataset data, double threshold){
+        SensorDecoder decoder = SensorDecoder.DISTANCE;
+        SensorDecoder.Readings predicted = decoder.newReadings();
+        SensorDecoder.Readings expected = decoder.newReadings();
+        double[] input = new double[data.INPUT_WIDTH];
+        double[] output = new double[model.getOutputSize()];
+        double[] target = new double[data.TARGET_WIDTH];
+        long correct = 0;
+        for(int sample = 0; sample < data.SIZE; sample++){
+            System.arraycopy(data.inputs, sample * data.INPUT_WIDTH, input, 0, data.INPUT_WIDTH);
+            System.arraycopy(data.targets, sample * data.TARGET_WIDTH, target, 0, data.TARGET_WIDTH);
+            model.infer(input, output);
+            decoder.decode(output, 0, threshold, predicted);
+            decoder.decode(target, 0, 0.5, expected);
+            for(int sensor = 0; sensor < decoder.SENSORS; sensor++){
+                if(predicted.state(sensor) == expected.state(sensor)) correct++;
+            }
+        }
+        return (double) correct / ((long) data.SIZE * decoder.SENSORS);
+    }
+
+    /**
+     * @return a network with the same shape, activations, weights and biases, without the pruning mask
+     */
+    private static Network copy(Network network){
+        Network copy = new Network(network.LAYER_SIZES.clone(),
+                Arrays.copyOfRange(network.activations, 1, network.NETWORK_SIZE), network.kernels, false);
+        for(int layer = 1; layer < network.NETWORK_SIZE; layer++){
+            System.arraycopy(network.weights[layer], 0, copy.weights[layer], 0, network.weights[layer].length);
+            System.arraycopy(network.biases[layer], 0, copy.biases[layer], 0, network.biases[layer].length);
+        }
+        copy.setMSE(network.getMSE());
+        return copy;
+    }
+
+    /**
+     * Trains a sensor network and reports the pruning trade-off.
+     * Usage: Pruner [recording-file], without a recording on random readings labelled as the data harvester does.
+     */
+    public static void main(String[] args) throws IOException {
+        Dataset data = args.length > 0 ? Dataset.load(args[0]) : Dataset.harvesterSample(20_000, 3);
+        Dataset[] parts = data.split(0.25, 11);
+        Network network = new Network(new int[]{data.INPUT_WIDTH, 128, 128, data.TARGET_WIDTH});
+        network.setOptimizer(new Optimizer.Adam());
+        Trainer trainer = new Trainer(network);
+        trainer.setShuffle(true, 1);
+        trainer.train(parts[0], new Schedule.Constant(0.003), 20, 16, new StopCriteria());
+        report(network, parts[0], parts[1], new double[]{0.5, 0.75, 0.9, 0.95, 0.98}, 4, 5,
+                new Schedule.Constant(0.003), 16);
+    }
+}
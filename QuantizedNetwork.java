@@ -0,0 +1,371 @@
+package nn.DenisAleksandrov;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Inference-only int8 version of a trained Network, about 8 times smaller than the double model.
+ *
+ * Every weight row is stored as signed bytes with one float scale per row (symmetric, the largest weight of the row
+ * maps to 127). The inputs of every layer are quantized to signed bytes too: the range an input neuron showed on a
+ * calibration set is mapped onto -127 .. 127, so sigmoid outputs and distances, which are never negative, still get
+ * all 255 steps. The input scales are folded into the weights before they are quantized and the input offsets into
+ * the biases, so a layer is a single integer dot product per neuron followed by one multiplication by the row
+ * scale, the bias and the activation in float. Values beyond the calibrated range are clamped.
+ *
+ * There are no derivatives, error signals or Neuron objects, the model cannot be trained.
+ * Build one with quantize, compare it against the double model with report.
+ */
+public class QuantizedNetwork implements InferenceModel {
+    /**
+     * Signifies the number layers and number of neurons in each layer
+     */
+    public final int[] LAYER_SIZES;
+    /**
+     * The number of neurons in the input layer
+     */
+    public final int INPUT_SIZE;
+    /**
+     * The number of neurons in the output layer
+     */
+    public final int OUTPUT_SIZE;
+    /**
+     * The number of layers in the network
+     */
+    public final int NETWORK_SIZE;
+
+    /**
+     * weights[layer]: row-major LAYER_SIZES[layer] x LAYER_SIZES[layer - 1] matrix of quantized weights
+     */
+    final byte[][] weights;
+    /**
+     * rowScales[layer][neuron]: value of one unit of the neuron's quantized dot product
+     */
+    final float[][] rowScales;
+    final float[][] biases;
+    /**
+     * inputScales[layer][prevNeuron]: value of one unit of the quantized input prevNeuron of the layer
+     */
+    final float[][] inputScales;
+    /**
+     * inputOffsets[layer][prevNeuron]: value of the input prevNeuron of the layer quantized to 0, the middle of
+     * its calibrated range
+     */
+    final float[][] inputOffsets;
+    /**
+     * activations[layer]: activation function of the neurons in each layer, activations[0] is unused
+     */
+    final Activation[] activations;
+
+    /**
+     * 1 / inputScales, to quantize with a multiplication
+     */
+    private final float[][] inverseInputScales;
+
+    private final Kernels kernels = Kernels.DEFAULT;
+
+    /**
+     * Per-thread quantized inputs of every layer used by infer
+     */
+    private final ThreadLocal<byte[][]> inferScratch = ThreadLocal.withInitial(this::newScratch);
+
+    /**
+     * Creates an empty model, filled by quantize or Checkpoint
+     */
+    QuantizedNetwork(int[] layerSizes, Activation[] layerActivations){
+        LAYER_SIZES = layerSizes;
+        INPUT_SIZE = LAYER_SIZES[0];
+        NETWORK_SIZE = LAYER_SIZES.length;
+        OUTPUT_SIZE = LAYER_SIZES[NETWORK_SIZE - 1];
+        activations = new Activation[NETWORK_SIZE];
+        weights = new byte[NETWORK_SIZE][];
+        rowScales = new float[NETWORK_SIZE][];
+        biases = new float[NETWORK_SIZE][];
+        inputScales = new float[NETWORK_SIZE][];
+        inputOffsets = new float[NETWORK_SIZE][];
+        inverseInputScales = new float[NETWORK_SIZE][];
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            activations[layer] = layerActivations[layer - 1];
+            weights[layer] = new byte[LAYER_SIZES[layer] * LAYER_SIZES[layer - 1]];
+            rowScales[layer] = new float[LAYER_SIZES[layer]];
+            biases[layer] = new float[LAYER_SIZES[layer]];
+            inputScales[layer] = new float[LAYER_SIZES[layer - 1]];
+            inputOffsets[layer] = new float[LAYER_SIZES[layer - 1]];
+            inverseInputScales[layer] = new float[LAYER_SIZES[layer - 1]];
+        }
+    }
+
+    /**
+     * Quantizes a trained network, calibrating the input range of every layer on a data set
+     * @param network trained network
+     * @param calibration samples representative of what the model will see, e.g. a harvested recording
+     * @param maxSamples largest number of samples to calibrate on, spread evenly over the data set
+     * @return int8 model of the network
+     * @throws IllegalArgumentException if the data set is empty or does not match the network
+     */
+    public static QuantizedNetwork quantize(Network network, Dataset calibration, int maxSamples){
+        if(calibration.SIZE == 0 || calibration.INPUT_WIDTH != network.INPUT_SIZE){
+            throw new IllegalArgumentException("Calibration set is empty or does not match the network");
+        }
+        // smallest and largest value of every neuron of every layer but the output layer
+        double[][] lows = new double[network.NETWORK_SIZE - 1][];
+        double[][] highs = new double[network.NETWORK_SIZE - 1][];
+        for(int layer = 0; layer < lows.length; layer++){
+            lows[layer] = new double[network.LAYER_SIZES[layer]];
+            highs[layer] = new double[network.LAYER_SIZES[layer]];
+            Arrays.fill(lows[layer], Double.POSITIVE_INFINITY);
+            Arrays.fill(highs[layer], Double.NEGATIVE_INFINITY);
+        }
+        double[][] scratch = network.newScratch();
+        double[] input = new double[network.INPUT_SIZE];
+        double[] output = new double[network.OUTPUT_SIZE];
+        int samples = Math.max(1, Math.min(maxSamples, calibration.SIZE));
+        for(int i = 0; i < samples; i++){
+            int sample = (int) ((long) i * calibration.SIZE / samples);
+            System.arraycopy(calibration.inputs, sample * network.INPUT_SIZE, input, 0, network.INPUT_SIZE);
+            network.infer(input, output, scratch);
+            for(int layer = 0; layer < lows.length; layer++){
+                double[] values = layer == 0 ? input : scratch[layer];
+                for(int neuron = 0; neuron < values.length; neuron++){
+                    lows[layer][neuron] = Math.min(lows[layer][neuron], values[neuron]);
+                    highs[layer][neuron] = Math.max(highs[layer][neuron], values[neuron]);
+                }
+            }
+        }
+        QuantizedNetwork quantized = new QuantizedNetwork(network.LAYER_SIZES.clone(),
+                Arrays.copyOfRange(network.activations, 1, network.NETWORK_SIZE));
+        for(int layer = 1; layer < network.NETWORK_SIZE; layer++){
+            int prevSize = network.LAYER_SIZES[layer - 1];
+            float[] inputScales = quantized.inputScales[layer];
+            float[] inputOffsets = quantized.inputOffsets[layer];
+            for(int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++){
+                double low = lows[layer - 1][prevNeuron];
+                double high = highs[layer - 1][prevNeuron];
+                inputScales[prevNeuron] = (float) (high > low ? (high - low) / 254 : 1);
+                inputOffsets[prevNeuron] = (float) ((low + high) / 2);
+            }
+            double[] w = network.weights[layer];
+            double[] folded = new double[prevSize];
+            for(int neuron = 0, row = 0; neuron < network.LAYER_SIZES[layer]; neuron++, row += prevSize){
+                double largest = 0;
+                // the offsets of the inputs are the same for every sample, they move into the bias
+                double bias = network.biases[layer][neuron];
+                for(int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++){
+                    folded[prevNeuron] = w[row + prevNeuron] * inputScales[prevNeuron];
+                    largest = Math.max(largest, Math.abs(folded[prevNeuron]));
+                    bias += w[row + prevNeuron] * inputOffsets[prevNeuron];
+                }
+                double scale = largest > 0 ? largest / 127 : 1;
+                for(int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++){
+                    quantized.weights[layer][row + prevNeuron] = (byte) Math.round(folded[prevNeuron] / scale);
+                }
+                quantized.rowScales[layer][neuron] = (float) scale;
+                quantized.biases[layer][neuron] = (float) bias;
+            }
+        }
+        quantized.prepare();
+        return quantized;
+    }
+
+    /**
+     * Derives the inverse input scales, after quantize or loading
+     */
+    void prepare(){
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            for(int i = 0; i < inputScales[layer].length; i++){
+                inverseInputScales[layer][i] = 1 / inputScales[layer][i];
+            }
+        }
+    }
+
+    /**
+     * Feeds the input through the model, thread safe
+     * @param input value array for the neurons in input layer
+     * @param output array of at least OUTPUT_SIZE receiving the output layer values
+     * @return output, or null if the arrays do not match the network
+     */
+    @Override
+    public double[] infer(double[] input, double[] output){
+        if(input.length != INPUT_SIZE || output.length < OUTPUT_SIZE) return null;
+        byte[][] scratch = inferScratch.get();
+        quantize(input, inputOffsets[1], inverseInputScales[1], scratch[0]);
+        float[] values = null;
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            int prevSize = LAYER_SIZES[layer - 1];
+            byte[] w = weights[layer];
+            byte[] prev = scratch[layer - 1];
+            float[] scales = rowScales[layer];
+            float[] b = biases[layer];
+            Activation f = activations[layer];
+            boolean last = layer == NETWORK_SIZE - 1;
+            float[] offsets = last ? null : inputOffsets[layer + 1];
+            float[] inverse = last ? null : inverseInputScales[layer + 1];
+            byte[] next = last ? null : scratch[layer];
+            for(int neuron = 0, row = 0; neuron < LAYER_SIZES[layer]; neuron++, row += prevSize){
+                double a = f.apply(kernels.dot(w, row, prev, 0, prevSize) * scales[neuron] + b[neuron]);
+                if(last) output[neuron] = a;
+                else next[neuron] = clamp((a - offsets[neuron]) * inverse[neuron]);
+            }
+        }
+        return output;
+    }
+
+    private static void quantize(double[] values, float[] offsets, float[] inverseScales, byte[] out){
+        for(int i = 0; i < values.length; i++){
+            out[i] = clamp((values[i] - offsets[i]) * inverseScales[i]);
+        }
+    }
+
+    /**
+     * Rounds to the nearest int8, clamping to -127 .. 127
+     */
+    private static byte clamp(double value){
+        long rounded = Math.round(value);
+        return (byte) Math.max(-127, Math.min(127, rounded));
+    }
+
+    /**
+     * Allocates the quantized inputs of every layer, scratch[layer] holds the quantized outputs of layer
+     */
+    private byte[][] newScratch(){
+        byte[][] scratch = new byte[NETWORK_SIZE][];
+        for(int layer = 0; layer < NETWORK_SIZE - 1; layer++){
+            scratch[layer] = new byte[LAYER_SIZES[layer]];
+        }
+        return scratch;
+    }
+
+    @Override
+    public int getInputSize(){
+        return INPUT_SIZE;
+    }
+
+    @Override
+    public int getOutputSize(){
+        return OUTPUT_SIZE;
+    }
+
+    /**
+     * @return bytes taken by the weights, scales and biases
+     */
+    public long getModelBytes(){
+        long bytes = 0;
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            bytes += weights[layer].length + 4L * (rowScales[layer].length + biases[layer].length
+                    + 2 * inputScales[layer].length);
+        }
+        return bytes;
+    }
+
+    /**
+     * Saves the model in the binary checkpoint format with int8 values, see Checkpoint
+     * @param pathname where to save the model
+     * @throws IOException in the case the file cannot be written
+     */
+    public void saveBinary(String pathname) throws IOException {
+        Checkpoint.write(this, pathname);
+    }
+
+    /**
+     * Loads a model saved by saveBinary
+     * @param pathname from where to load the model
+     * @return loaded model
+     * @throws IOException in the case the file cannot be read or is not an int8 checkpoint
+     */
+    public static QuantizedNetwork loadBinary(String pathname) throws IOException {
+        return Checkpoint.readQuantizedNetwork(pathname);
+    }
+
+    /**
+     * Compares the decisions of a quantized model with those of the network it was made from, on a data set:
+     * how often every output lands on the same side of the threshold, how often the getMessage decision of every
+     * sample is the same, the output error, the model size and the time per inference
+     * @param network double model
+     * @param quantized int8 model of the network
+     * @param data samples to compare on, ideally not the calibration samples
+     * @param threshold confidence of getMessage, Network.THINK_THRESHOLD for think
+     */
+    public static void report(Network network, QuantizedNetwork quantized, Dataset data, double threshold){
+        SensorDecoder decoder = SensorDecoder.DISTANCE;
+        SensorDecoder.Readings expected = decoder.newReadings();
+        SensorDecoder.Readings actual = decoder.newReadings();
+        double[] input = new double[network.INPUT_SIZE];
+        double[] exact = new double[network.OUTPUT_SIZE];
+        double[] approximate = new double[network.OUTPUT_SIZE];
+        long outputsAgreeing = 0;
+        int messagesAgreeing = 0;
+        double largestError = 0;
+        double errorSum = 0;
+        for(int sample = 0; sample < data.SIZE; sample++){
+            System.arraycopy(data.inputs, sample * network.INPUT_SIZE, input, 0, network.INPUT_SIZE);
+            network.infer(input, exact);
+            quantized.infer(input, approximate);
+            for(int i = 0; i < exact.length; i++){
+                if((exact[i] >= threshold) == (approximate[i] >= threshold)) outputsAgreeing++;
+                double error = Math.abs(exact[i] - approximate[i]);
+                largestError = Math.max(largestError, error);
+                errorSum += error;
+            }
+            decoder.decode(exact, 0, threshold, expected);
+            decoder.decode(approximate, 0, threshold, actual);
+            boolean same = true;
+            for(int sensor = 0; sensor < decoder.SENSORS; sensor++){
+                same &= expected.state(sensor) == actual.state(sensor);
+            }
+            if(same) messagesAgreeing++;
+        }
+        long doubleBytes = 0;
+        for(int layer = 1; layer < network.NETWORK_SIZE; layer++){
+            doubleBytes += 8L * (network.weights[layer].length + network.biases[layer].length);
+        }
+        System.out.printf("%s, %d samples, threshold %.2f%n", Arrays.toString(network.LAYER_SIZES), data.SIZE,
+                threshold);
+        System.out.printf("  outputs on the same side of the threshold: %.3f%%%n",
+                100.0 * outputsAgreeing / ((long) data.SIZE * network.OUTPUT_SIZE));
+        System.out.printf("  getMessage decisions identical:            %.3f%%%n",
+                100.0 * messagesAgreeing / data.SIZE);
+        System.out.printf("  output error: mean %.2e, largest %.2e%n",
+                errorSum / ((long) data.SIZE * network.OUTPUT_SIZE), largestError);
+        System.out.printf("  model size: double %d bytes, int8 %d bytes (%.1fx smaller)%n", doubleBytes,
+                quantized.getModelBytes(), (double) doubleBytes / quantized.getModelBytes());
+        System.out.printf("  infer: double %.0f ns, int8 %.0f ns%n", Benchmark.inferNanos(network, input),
+                Benchmark.inferNanos(quantized, input));
+    }
+
+    /**
+     * Quantizes a network and reports its accuracy and speed against the double model.
+     * Usage: QuantizedNetwork [network-file recording-file]. Without arguments a sensor network is trained on
+     * random distance readings labelled FAR, NEAR or BLOCKING per direction as the data harvester labels them.
+     * Calibrates on the first half of the recording and reports on the second half.
+     */
+    public static void main(String[] args) throws IOException {
+        Network network;
+        Dataset data;
+        if(args.length >= 2){
+            network = InferenceServer.loadModel(args[0]);
+            data = Dataset.load(args[1], network);
+        }
+        else{
+            data = Dataset.harvesterSample(20_000, 3);
+            network = new Network(new int[]{4, 32, 32, 12});
+            network.setOptimizer(new Optimizer.Adam());
+            Trainer trainer = new Trainer(network);
+            trainer.setShuffle(true, 1);
+            trainer.train(data, new Schedule.Constant(0.003), 30, 16, new StopCriteria());
+        }
+        Dataset[] halves = data.split(0.5, 11);
+        QuantizedNetwork quantized = quantize(network, halves[0], 10_000);
+        report(network, quantized, halves[1], Network.THINK_THRESHOLD);
+        report(network, quantized, halves[1], 0.5);
+        // the same comparison on a wide network, where the weights dominate the time
+        Network wide = new Network(new int[]{64, 512, 512, 12});
+        Random random = new Random(5);
+        double[] inputs = new double[2000 * 64];
+        for(int i = 0; i < inputs.length; i++){
+            inputs[i] = random.nextDouble();
+        }
+        Dataset wideData = new Dataset(inputs, new double[2000 * 12], 64, 12);
+        report(wide, quantize(wide, wideData, 1000), wideData, 0.5);
+    }
+}
@@ -0,0 +1,101 @@
+package nn.DenisAleksandrov;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A pull-based stream of training samples, read in blocks into buffers owned by the caller.
+ * Sources are read once from start to end, Trainer.train(SampleSource, ...) trains on them without ever holding
+ * more than a few blocks in memory. CsvParser.stream reads a recording of any size this way.
+ */
+public interface SampleSource extends AutoCloseable {
+    /**
+     * @return number of values in each input vector
+     */
+    int getInputWidth();
+
+    /**
+     * @return number of values in each target vector
+     */
+    int getTargetWidth();
+
+    /**
+     * Reads the next samples into flat row-major matrices, see Dataset
+     * @param inputs receives the input vectors, room for at least max * getInputWidth() values
+     * @param targets receives the target vectors, room for at least max * getTargetWidth() values
+     * @param max largest number of samples to read
+     * @return number of samples read, 0 once the source is exhausted
+     * @throws IOException in the case the samples cannot be read
+     */
+    int read(double[] inputs, double[] targets, int max) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * @param data data set to stream
+     * @return a source reading the data set's samples in order
+     */
+    static SampleSource of(Dataset data){
+        return new SampleSource(){
+            private int next;
+
+            @Override
+            public int getInputWidth(){
+                return data.INPUT_WIDTH;
+            }
+
+            @Override
+            public int getTargetWidth(){
+                return data.TARGET_WIDTH;
+            }
+
+            @Override
+            public int read(double[] inputs, double[] targets, int max){
+                int count = Math.min(max, data.SIZE - next);
+                System.arraycopy(data.inputs, next * data.INPUT_WIDTH, inputs, 0, count * data.INPUT_WIDTH);
+                System.arraycopy(data.targets, next * data.TARGET_WIDTH, targets, 0, count * data.TARGET_WIDTH);
+                next += count;
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Adapts an iterator, or a Spliterator through java.util.Spliterators.iterator, of samples
+     * @param samples samples as {input, target} pairs
+     * @param inputWidth length of every input
+     * @param targetWidth length of every target
+     * @return a source reading the iterator's samples in order
+     */
+    static SampleSource of(Iterator<double[][]> samples, int inputWidth, int targetWidth){
+        return new SampleSource(){
+            @Override
+            public int getInputWidth(){
+                return inputWidth;
+            }
+
+            @Override
+            public int getTargetWidth(){
+                return targetWidth;
+            }
+
+            @Override
+            public int read(double[] inputs, double[] targets, int max) throws IOException {
+                int count = 0;
+                while(count < max && samples.hasNext()){
+                    double[][] sample = samples.next();
+                    if(sample[0].length != inputWidth || sample[1].length != targetWidth){
+                        throw new IOException("Sample does not have " + inputWidth + " inputs and "
+                                + targetWidth + " targets");
+                    }
+                    System.arraycopy(sample[0], 0, inputs, count * inputWidth, inputWidth);
+                    System.arraycopy(sample[1], 0, targets, count * targetWidth, targetWidth);
+                    count++;
+                }
+                return count;
+            }
+        };
+    }
+}
@@ -0,0 +1,125 @@
+package nn.DenisAleksandrov;
+
+/**
+ * Learning rate schedule, asked for the learning rate at the start of every epoch.
+ * Trainer.train(Dataset, Schedule, ...) passes the mean of Network.getMSE() over the previous epoch, which
+ * ReduceOnPlateau uses to lower the learning rate once the error stops improving.
+ */
+public abstract class Schedule {
+    /**
+     * @param epoch index of the epoch about to start, from 0
+     * @param mse mean MSE over the updates of the previous epoch, NaN before the first epoch
+     * @return learning rate for the epoch
+     */
+    public abstract double eta(int epoch, double mse);
+
+    /**
+     * The same learning rate for every epoch
+     */
+    public static class Constant extends Schedule {
+        private final double eta;
+
+        public Constant(double eta){
+            this.eta = eta;
+        }
+
+        @Override
+        public double eta(int epoch, double mse){
+            return eta;
+        }
+    }
+
+    /**
+     * eta * factor^(epoch / every)
+     */
+    public static class StepDecay extends Schedule {
+        private final double eta;
+        private final double factor;
+        private final int every;
+
+        /**
+         * @param eta initial learning rate
+         * @param factor multiplier applied every few epochs, typically 0.5
+         * @param every number of epochs between two decays
+         */
+        public StepDecay(double eta, double factor, int every){
+            this.eta = eta;
+            this.factor = factor;
+            this.every = Math.max(1, every);
+        }
+
+        @Override
+        public double eta(int epoch, double mse){
+            return eta * Math.pow(factor, epoch / every);
+        }
+    }
+
+    /**
+     * Cosine annealing from eta down to minEta over a number of epochs, minEta after that
+     */
+    public static class Cosine extends Schedule {
+        private final double eta;
+        private final double minEta;
+        private final int epochs;
+
+        /**
+         * @param eta initial learning rate
+         * @param minEta final learning rate
+         * @param epochs number of epochs to anneal over
+         */
+        public Cosine(double eta, double minEta, int epochs){
+            this.eta = eta;
+            this.minEta = minEta;
+            this.epochs = Math.max(1, epochs);
+        }
+
+        @Override
+        public double eta(int epoch, double mse){
+            if(epoch >= epochs) return minEta;
+            return minEta + (eta - minEta) * (1 + Math.cos(Math.PI * epoch / epochs)) / 2;
+        }
+    }
+
+    /**
+     * Multiplies the learning rate by factor whenever the MSE has not improved by at least threshold
+     * (relative) for patience epochs, never going below minEta
+     */
+    public static class ReduceOnPlateau extends Schedule {
+        private final double factor;
+        private final int patience;
+        private final double threshold;
+        private final double minEta;
+        private double eta;
+        private double best = Double.POSITIVE_INFINITY;
+        private int stale;
+
+        /**
+         * @param eta initial learning rate
+         * @param factor multiplier applied on a plateau, typically 0.5
+         * @param patience number of epochs without improvement before reducing
+         * @param threshold relative improvement of the MSE that counts, typically 1e-3
+         * @param minEta lowest learning rate
+         */
+        public ReduceOnPlateau(double eta, double factor, int patience, double threshold, double minEta){
+            this.eta = eta;
+            this.factor = factor;
+            this.patience = Math.max(1, patience);
+            this.threshold = threshold;
+            this.minEta = minEta;
+        }
+
+        @Override
+        public double eta(int epoch, double mse){
+            if(Double.isNaN(mse)) return eta;
+            if(mse < best * (1 - threshold)){
+                best = mse;
+                stale = 0;
+            }
+            else if(++stale >= patience){
+                eta = Math.max(minEta, eta * factor);
+                stale = 0;
+            }
+            return eta;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package nn.DenisAleksandrov;
+
+import java.util.Arrays;
+
+/**
+ * Turns the outputs of a sensor network into a state per sensor without allocating.
+ *
+ * The outputs are laid out as in the data harvester recordings: one group of outputs per sensor, one output per
+ * class in each group, e.g. DISTANCE reads outputs 0 to 2 as LEFT FAR, NEAR and BLOCKING, outputs 3 to 5 as
+ * FORWARD FAR, NEAR and BLOCKING, and so on. A sensor's state is the last of its classes whose output reaches the
+ * threshold, or UNKNOWN if none does, the same rule Network.getMessage has always used.
+ *
+ * decode writes the states into a Readings object owned by the caller and reused every control tick.
+ * The message strings of getMessage are built once per decoder and handed out by message.
+ */
+public final class SensorDecoder {
+    /**
+     * State of a sensor none of whose outputs reaches the threshold
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Class indices of DISTANCE
+     */
+    public static final int FAR = 0;
+    public static final int NEAR = 1;
+    public static final int BLOCKING = 2;
+
+    /**
+     * Sensor indices of DISTANCE
+     */
+    public static final int LEFT = 0;
+    public static final int FORWARD = 1;
+    public static final int RIGHT = 2;
+    public static final int BACK = 3;
+
+    /**
+     * The four distance sensors of CGMoveALine with three classes each, the layout behind Network.getMessage
+     */
+    public static final SensorDecoder DISTANCE = new SensorDecoder("OBSTACLE-",
+            new String[]{"LEFT", "FORWARD", "RIGHT", "BACK"}, new String[]{"FAR", "NEAR", "BLOCKING"});
+
+    /**
+     * Number of sensors and of classes per sensor
+     */
+    public final int SENSORS;
+    public final int CLASSES;
+
+    private final String[] sensorNames;
+    private final String[] classNames;
+
+    /**
+     * messages[sensor][state + 1]: message of every sensor and state, UNKNOWN first
+     */
+    private final String[][] messages;
+
+    /**
+     * @param prefix put in front of every message, "OBSTACLE-" for the legacy messages
+     * @param sensorNames name of every sensor, in the order of their output groups
+     * @param classNames name of every class, in the order of the outputs of a group
+     */
+    public SensorDecoder(String prefix, String[] sensorNames, String[] classNames){
+        this.sensorNames = sensorNames.clone();
+        this.classNames = classNames.clone();
+        SENSORS = sensorNames.length;
+        CLASSES = classNames.length;
+        messages = new String[SENSORS][CLASSES + 1];
+        for(int sensor = 0; sensor < SENSORS; sensor++){
+            messages[sensor][0] = prefix + sensorNames[sensor] + " UNKNOWN";
+            for(int c = 0; c < CLASSES; c++){
+                messages[sensor][c + 1] = prefix + sensorNames[sensor] + " " + classNames[c];
+            }
+        }
+    }
+
+    /**
+     * @return number of network outputs this decoder reads
+     */
+    public int getOutputSize(){
+        return SENSORS * CLASSES;
+    }
+
+    /**
+     * @return a Readings object for this decoder, to be reused with every decode
+     */
+    public Readings newReadings(){
+        return new Readings(SENSORS);
+    }
+
+    /**
+     * Decodes one output vector. Groups missing at the end of a shorter vector decode as UNKNOWN.
+     * @param outputs network outputs
+     * @param offset index of the first output of the first sensor
+     * @param threshold confidence an output needs to set its sensor's state
+     * @param readings receives the states, from newReadings of this decoder
+     * @return readings
+     */
+    public Readings decode(double[] outputs, int offset, double threshold, Readings readings){
+        long mask = 0;
+        for(int sensor = 0, at = offset; sensor < SENSORS; sensor++, at += CLASSES){
+            int state = UNKNOWN;
+            double best = Double.NaN;
+            int classes = Math.min(CLASSES, outputs.length - at);
+            for(int c = 0; c < classes; c++){
+                double value = outputs[at + c];
+                if(value >= threshold) state = c;
+                if(!(value <= best)) best = value;
+            }
+            readings.states[sensor] = state;
+            // the output of the state, or the highest output of the sensor if it is unknown
+            readings.confidences[sensor] = state == UNKNOWN ? best : outputs[at + state];
+            int bit = sensor * CLASSES + state;
+            if(state != UNKNOWN && bit < 64) mask |= 1L << bit;
+        }
+        readings.mask = mask;
+        return readings;
+    }
+
+    /**
+     * @param sensor sensor index
+     * @param state class index or UNKNOWN
+     * @return the precomputed message, e.g. "OBSTACLE-LEFT FAR" or "OBSTACLE-LEFT UNKNOWN" for DISTANCE
+     */
+    public String message(int sensor, int state){
+        return messages[sensor][state + 1];
+    }
+
+    /**
+     * Fills an array in the format of Network.getMessage
+     * @param readings decoded states
+     * @param out array of at least SENSORS entries
+     * @return out, holding the message of every known sensor and null for every unknown one
+     */
+    public String[] messages(Readings readings, String[] out){
+        for(int sensor = 0; sensor < SENSORS; sensor++){
+            int state = readings.states[sensor];
+            out[sensor] = state == UNKNOWN ? null : messages[sensor][state + 1];
+        }
+        return out;
+    }
+
+    public String getSensorName(int sensor){
+        return sensorNames[sensor];
+    }
+
+    public String getClassName(int state){
+        return state == UNKNOWN ? "UNKNOWN" : classNames[state];
+    }
+
+    /**
+     * States of every sensor after a decode
+     */
+    public static final class Readings{
+        private final int[] states;
+        private final double[] confidences;
+        private long mask;
+
+        private Readings(int sensors){
+            states = new int[sensors];
+            confidences = new double[sensors];
+            Arrays.fill(states, UNKNOWN);
+            Arrays.fill(confidences, Double.NaN);
+        }
+
+        /**
+         * @return class index of the sensor's state, UNKNOWN if no output reached the threshold
+         */
+        public int state(int sensor){
+            return states[sensor];
+        }
+
+        /**
+         * @return output of the sensor's state, or its highest output if the state is UNKNOWN
+         */
+        public double confidence(int sensor){
+            return confidences[sensor];
+        }
+
+        public boolean isKnown(int sensor){
+            return states[sensor] != UNKNOWN;
+        }
+
+        /**
+         * @return whether the sensor is in the given state
+         */
+        public boolean is(int sensor, int state){
+            return states[sensor] == state;
+        }
+
+        /**
+         * @return bit sensor * CLASSES + state set for every known sensor, only complete with at most 64 outputs
+         */
+        public long mask(){
+            return mask;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package nn.DenisAleksandrov;
+
+import java.util.Arrays;
+
+/**
+ * Inference-only copy of a pruned Network with its sparse layers in compressed sparse row (CSR) format.
+ *
+ * A layer whose share of non-zero weights is at most CSR_DENSITY keeps only those: values holds the non-zero
+ * weights row by row, columns the index of the previous layer's neuron each one multiplies, and the weights of
+ * neuron n are values[rowStarts[n] .. rowStarts[n + 1] - 1]. Each neuron then costs one multiplication per
+ * surviving weight, read through Kernels.sparseDot. Denser layers stay dense, row-major as in Network, since
+ * loading an index per weight and giving up the SIMD dot product costs more than the multiplications it skips.
+ *
+ * Build one with fromNetwork after Pruner has zeroed the weights, see Pruner.report for the trade-off.
+ */
+public class SparseNetwork implements InferenceModel {
+    /**
+     * Largest share of non-zero weights a layer is stored in CSR format with, about where the sparse rows of the
+     * hidden layers of [4, 128, 128, 12] and [64, 512, 512, 12] become faster than the SIMD dense rows
+     */
+    static final double CSR_DENSITY = 0.25;
+
+    /**
+     * Signifies the number layers and number of neurons in each layer
+     */
+    public final int[] LAYER_SIZES;
+    /**
+     * The number of neurons in the input layer
+     */
+    public final int INPUT_SIZE;
+    /**
+     * The number of neurons in the output layer
+     */
+    public final int OUTPUT_SIZE;
+    /**
+     * The number of layers in the network
+     */
+    public final int NETWORK_SIZE;
+
+    /**
+     * values[layer]: non-zero weights row by row for CSR layers, all weights as in Network.weights for dense layers
+     */
+    final double[][] values;
+    /**
+     * columns[layer][k]: previous layer neuron of values[layer][k], null for dense layers
+     */
+    final int[][] columns;
+    /**
+     * rowStarts[layer][neuron]: index of the neuron's first weight in values[layer], LAYER_SIZES[layer] + 1 entries,
+     * null for dense layers
+     */
+    final int[][] rowStarts;
+    final double[][] biases;
+    /**
+     * activations[layer]: activation function of the neurons in each layer, activations[0] is unused
+     */
+    final Activation[] activations;
+
+    private final Kernels kernels = Kernels.DEFAULT;
+
+    /**
+     * Per-thread scratch buffers used by infer
+     */
+    private final ThreadLocal<double[][]> inferScratch = ThreadLocal.withInitial(this::newScratch);
+
+    private SparseNetwork(int[] layerSizes){
+        LAYER_SIZES = layerSizes;
+        INPUT_SIZE = LAYER_SIZES[0];
+        NETWORK_SIZE = LAYER_SIZES.length;
+        OUTPUT_SIZE = LAYER_SIZES[NETWORK_SIZE - 1];
+        values = new double[NETWORK_SIZE][];
+        columns = new int[NETWORK_SIZE][];
+        rowStarts = new int[NETWORK_SIZE][];
+        biases = new double[NETWORK_SIZE][];
+        activations = new Activation[NETWORK_SIZE];
+    }
+
+    /**
+     * Copies a network, storing every layer with at most CSR_DENSITY non-zero weights in CSR format
+     * @param network network, usually pruned
+     * @return sparse copy computing the same function
+     */
+    public static SparseNetwork fromNetwork(Network network){
+        SparseNetwork sparse = new SparseNetwork(network.LAYER_SIZES.clone());
+        for(int layer = 1; layer < network.NETWORK_SIZE; layer++){
+            int prevSize = network.LAYER_SIZES[layer - 1];
+            double[] w = network.weights[layer];
+            sparse.biases[layer] = network.biases[layer].clone();
+            sparse.activations[layer] = network.activations[layer];
+            int nonZeros = 0;
+            for(double weight : w){
+                if(weight != 0) nonZeros++;
+            }
+            if(nonZeros > CSR_DENSITY * w.length){
+                sparse.values[layer] = w.clone();
+                continue;
+            }
+            double[] v = new double[nonZeros];
+            int[] c = new int[nonZeros];
+            int[] starts = new int[network.LAYER_SIZES[layer] + 1];
+            int k = 0;
+            for(int neuron = 0, row = 0; neuron < network.LAYER_SIZES[layer]; neuron++, row += prevSize){
+                starts[neuron] = k;
+                for(int prevNeuron = 0; prevNeuron < prevSize; prevNeuron++){
+                    if(w[row + prevNeuron] != 0){
+                        v[k] = w[row + prevNeuron];
+                        c[k] = prevNeuron;
+                        k++;
+                    }
+                }
+            }
+            starts[network.LAYER_SIZES[layer]] = k;
+            sparse.values[layer] = v;
+            sparse.columns[layer] = c;
+            sparse.rowStarts[layer] = starts;
+        }
+        return sparse;
+    }
+
+    /**
+     * Feeds the input through the network, thread safe
+     * @param input value array for the neurons in input layer
+     * @param output array of at least OUTPUT_SIZE receiving the output layer values
+     * @return output, or null if the arrays do not match the network
+     */
+    @Override
+    public double[] infer(double[] input, double[] output){
+        if(input.length != INPUT_SIZE || output.length < OUTPUT_SIZE) return null;
+        double[][] scratch = inferScratch.get();
+        double[] prev = input;
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            double[] out = layer == NETWORK_SIZE - 1 ? output : scratch[layer];
+            int prevSize = LAYER_SIZES[layer - 1];
+            double[] v = values[layer];
+            int[] c = columns[layer];
+            int[] starts = rowStarts[layer];
+            double[] b = biases[layer];
+            Activation f = activations[layer];
+            for(int neuron = 0; neuron < LAYER_SIZES[layer]; neuron++){
+                double sum = c == null ? kernels.dot(prev, 0, v, neuron * prevSize, prevSize)
+                        : kernels.sparseDot(v, c, starts[neuron], starts[neuron + 1], prev);
+                out[neuron] = f.apply(sum + b[neuron]);
+            }
+            prev = out;
+        }
+        return output;
+    }
+
+    /**
+     * Allocates a scratch buffer for infer, one array per hidden layer
+     */
+    private double[][] newScratch(){
+        double[][] scratch = new double[NETWORK_SIZE][];
+        for(int layer = 1; layer < NETWORK_SIZE - 1; layer++){
+            scratch[layer] = new double[LAYER_SIZES[layer]];
+        }
+        return scratch;
+    }
+
+    /**
+     * @return whether the layer is stored in CSR format
+     */
+    public boolean isSparse(int layer){
+        return columns[layer] != null;
+    }
+
+    /**
+     * @return number of stored weights, the non-zero ones of CSR layers and all of dense layers
+     */
+    public long getStoredWeights(){
+        long stored = 0;
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            stored += values[layer].length;
+        }
+        return stored;
+    }
+
+    /**
+     * @return bytes taken by the weights, their indices and the biases
+     */
+    public long getModelBytes(){
+        long bytes = 0;
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            bytes += 8L * (values[layer].length + biases[layer].length);
+            if(columns[layer] != null) bytes += 4L * (columns[layer].length + rowStarts[layer].length);
+        }
+        return bytes;
+    }
+
+    @Override
+    public int getInputSize(){
+        return INPUT_SIZE;
+    }
+
+    @Override
+    public int getOutputSize(){
+        return OUTPUT_SIZE;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder text = new StringBuilder(Arrays.toString(LAYER_SIZES));
+        for(int layer = 1; layer < NETWORK_SIZE; layer++){
+            int all = LAYER_SIZES[layer] * LAYER_SIZES[layer - 1];
+            text.append(layer == 1 ? ": " : ", ").append(isSparse(layer) ? "CSR " : "dense ")
+                    .append(isSparse(layer) ? values[layer].length : all).append('/').append(all);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package nn.DenisAleksandrov;
+
+/**
+ * When Trainer.train(Dataset, Schedule, int, int, StopCriteria) stops before running all its epochs.
+ * Every criterion is off until set, the setters return this so they can be chained:
+ * new StopCriteria().targetMSE(0.01).patience(validation, 10).maxMillis(60_000).restoreBest(true)
+ *
+ * The monitored MSE is the MSE on the validation set if one is given, the mean training MSE of the epoch otherwise.
+ * Target MSE and patience are checked after every epoch, the update count before every update and the time budget
+ * before every update that follows Trainer.CLOCK_SAMPLES or more samples since its last check, so a budget can be
+ * overrun by up to that many samples.
+ */
+public class StopCriteria {
+    double targetMSE = Double.NEGATIVE_INFINITY;
+    Dataset validation;
+    int patience = Integer.MAX_VALUE;
+    double minDelta;
+    long maxMillis = Long.MAX_VALUE;
+    long maxUpdates = Long.MAX_VALUE;
+    boolean restoreBest;
+
+    /**
+     * Stops once the monitored MSE is at or below target
+     * @param target MSE to reach
+     * @return this
+     */
+    public StopCriteria targetMSE(double target){
+        targetMSE = target;
+        return this;
+    }
+
+    /**
+     * Monitors the MSE on a held-out data set instead of the training MSE
+     * @param validation samples not trained on
+     * @return this
+     */
+    public StopCriteria validation(Dataset validation){
+        this.validation = validation;
+        return this;
+    }
+
+    /**
+     * Stops once the monitored MSE has not improved on the best one by more than minDelta for a number of epochs
+     * @param epochs number of epochs without improvement to allow
+     * @param minDelta smallest decrease of the MSE that counts as an improvement
+     * @return this
+     */
+    public StopCriteria patience(int epochs, double minDelta){
+        patience = Math.max(1, epochs);
+        this.minDelta = minDelta;
+        return this;
+    }
+
+    /**
+     * Same as validation(validation).patience(epochs, 0)
+     * @param validation samples not trained on
+     * @param epochs number of epochs without improvement to allow
+     * @return this
+     */
+    public StopCriteria patience(Dataset validation, int epochs){
+        return validation(validation).patience(epochs, 0);
+    }
+
+    /**
+     * Stops once training has run for a number of milliseconds
+     * @param millis wall-clock budget
+     * @return this
+     */
+    public StopCriteria maxMillis(long millis){
+        maxMillis = millis;
+        return this;
+    }
+
+    /**
+     * Stops after a number of weight updates
+     * @param updates largest number of updates
+     * @return this
+     */
+    public StopCriteria maxUpdates(long updates){
+        maxUpdates = updates;
+        return this;
+    }
+
+    /**
+     * Puts back the weights and biases of the epoch with the best monitored MSE when training stops
+     * @param restore whether to restore them
+     * @return this
+     */
+    public StopCriteria restoreBest(boolean restore){
+        restoreBest = restore;
+        return this;
+    }
+}
@@ -1,16 +1,79 @@
 package nn.DenisAleksandrov;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Scanner;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 public class Trainer {
+    /**
+     * How trainParallel combines the work of its workers
+     */
+    public enum ParallelMode{
+        /**
+         * Every batch is split across the workers, their gradients are summed and applied once per batch
+         */
+        SYNCHRONOUS,
+        /**
+         * Every worker trains its own part of the data set straight on the shared weights without locking
+         */
+        HOGWILD
+    }
+
+    /**
+     * Called at the end of every epoch of train(Dataset, Schedule, int, int, StopCriteria)
+     */
+    public interface EpochListener{
+        /**
+         * @param epoch index of the epoch that ended, from 0
+         * @param trainMSE mean of Network.getMSE() over the updates of the epoch
+         * @param validationMSE MSE on the validation set, NaN without one
+         * @param eta learning rate of the epoch
+         */
+        void epochEnd(int epoch, double trainMSE, double validationMSE, double eta);
+    }
+
+    /**
+     * Samples trained between two reads of the clock for the time budget. Reading the clock costs about as much as
+     * a per-sample update of a small network, batches of this size or larger read it before every update.
+     */
+    static final int CLOCK_SAMPLES = 64;
+
     /**
      * The network to be trained
      */
     private final Network aNetwork;
 
+    /**
+     * Writes checkpoints in the background while training, null for none
+     */
+    private Checkpointer aCheckpointer;
+
+    /**
+     * Notified at the end of every epoch, null for none
+     */
+    private EpochListener aEpochListener;
+
+    /**
+     * Whether the epoch loop visits the samples in a new random order every epoch, and the seed of that order
+     */
+    private boolean aShuffle;
+    private long aShuffleSeed;
+
+    /**
+     * Permutation of the sample indices used when shuffling, reused across epochs and calls
+     */
+    private int[] aOrder = new int[0];
+
+    /**
+     * Records the progress of training, null for none
+     */
+    private Metrics aMetrics;
+
     /**
      *
      * @param pNetwork network for this training instance
@@ -34,10 +97,10 @@ public class Trainer {
         for(int i = 0; i < reruns; i++){
             for(int trainSet = 0; trainSet < input.length; trainSet++){
                 for(int trainNum = 0; trainNum < iterations; trainNum++){
-                    /**
-                     * NEED TO HAVE A DYNAMICALLY CHANGING ETA BASED ON THE MSE
-                     */
+                    // fixed eta, see train(Dataset, Schedule, int, int) for a learning rate driven by the MSE
+                    long start = startUpdate();
                     aNetwork.train(input[trainSet], target[trainSet], eta);
+                    afterUpdate(1, eta, start);
                 }
             }
             iterations = iterations / 2;
@@ -45,50 +108,643 @@ public class Trainer {
     }
 
     /**
-     * Gets distance sensor and corresponding target value data from a .csv file
+     * Trains aNetwork in mini-batches over descending number of iterations on given input and target values.
+     * Every iteration walks the whole data set once in batches of batchSize consecutive samples and updates the
+     * network once per batch, instead of training each sample iterations times in a row.
+     * A batchSize of 1 or less falls back to train(input, target, eta, iterations, reruns).
+     * @param input nxm matrix of input values
+     * @param target nxw matrix of target values
+     * @param eta initial learning rate
+     * @param iterations initial number of passes over the data set
+     * @param reruns number of times to retrain, decreases iterations by half every time
+     * @param batchSize number of samples per weight update
+     */
+    public void train(double[][] input, double[][] target, double eta, int iterations, int reruns, int batchSize){
+        if(batchSize <= 1){
+            train(input, target, eta, iterations, reruns);
+            return;
+        }
+        for(int i = 0; i < reruns; i++){
+            for(int trainNum = 0; trainNum < iterations; trainNum++){
+                for(int from = 0; from < input.length; from += batchSize){
+                    int count = Math.min(batchSize, input.length - from);
+                    long start = startUpdate();
+                    aNetwork.trainBatch(input, target, from, count, eta);
+                    afterUpdate(count, eta, start);
+                }
+            }
+            iterations = iterations / 2;
+        }
+    }
+
+    /**
+     * Same as train(double[][], double[][], double, int, int, int) on a Dataset, the samples are read straight
+     * from its flat matrices
+     * @param data samples to train on, widths matching the network
+     * @param eta learning rate
+     * @param iterations initial number of passes over the data set, or of repetitions of each sample if batchSize <= 1
+     * @param reruns number of times to retrain, decreases iterations by half every time
+     * @param batchSize number of samples per weight update
+     */
+    public void train(Dataset data, double eta, int iterations, int reruns, int batchSize){
+        if(data.INPUT_WIDTH != aNetwork.INPUT_SIZE || data.TARGET_WIDTH != aNetwork.OUTPUT_SIZE) return;
+        for(int i = 0; i < reruns; i++){
+            if(batchSize <= 1){
+                for(int sample = 0; sample < data.SIZE; sample++){
+                    for(int trainNum = 0; trainNum < iterations; trainNum++){
+                        long start = startUpdate();
+                        aNetwork.train(data.inputs, data.targets, sample, eta);
+                        afterUpdate(1, eta, start);
+                    }
+                }
+            }
+            else{
+                for(int trainNum = 0; trainNum < iterations; trainNum++){
+                    for(int from = 0; from < data.SIZE; from += batchSize){
+                        int count = Math.min(batchSize, data.SIZE - from);
+                        long start = startUpdate();
+                        aNetwork.trainBatch(data.inputs, data.targets, from, count, eta);
+                        afterUpdate(count, eta, start);
+                    }
+                }
+            }
+            iterations = iterations / 2;
+        }
+    }
+
+    /**
+     * Trains aNetwork for a number of passes over the data set with the learning rate of each pass taken
+     * from a schedule. Updates go through the network's optimizer, see Network.setOptimizer.
+     * The samples are visited in order, or in a new random order every epoch after setShuffle.
+     * @param data samples to train on, widths matching the network
+     * @param schedule learning rate of every epoch
+     * @param epochs number of passes over the data set
+     * @param batchSize number of samples per weight update, 1 or less for per-sample updates
+     * @return mean MSE over the updates of the last epoch, NaN if nothing was trained
+     */
+    public double train(Dataset data, Schedule schedule, int epochs, int batchSize){
+        return train(data, schedule, epochs, batchSize, new StopCriteria()).lastMSE;
+    }
+
+    /**
+     * Same as train(Dataset, Schedule, int, int), stopping early when one of the stop criteria is met
+     * @param data samples to train on, widths matching the network
+     * @param schedule learning rate of every epoch
+     * @param epochs largest number of passes over the data set
+     * @param batchSize number of samples per weight update, 1 or less for per-sample updates
+     * @param stop when to stop before running all epochs
+     * @return why training stopped and the best MSE reached
+     */
+    public TrainingResult train(Dataset data, Schedule schedule, int epochs, int batchSize, StopCriteria stop){
+        long start = System.nanoTime();
+        // saturates at Long.MAX_VALUE, no budget
+        long budget = TimeUnit.MILLISECONDS.toNanos(stop.maxMillis);
+        TrainingResult.StopReason reason = TrainingResult.StopReason.COMPLETED;
+        double mse = Double.NaN;
+        double monitored = Double.NaN;
+        double best = Double.NaN;
+        double patienceBest = Double.POSITIVE_INFINITY;
+        int bestEpoch = -1;
+        int stale = 0;
+        long updates = 0;
+        // samples trained since the clock was last read, starts full so the first update looks at it
+        int unclocked = CLOCK_SAMPLES;
+        double[][] bestWeights = null;
+        double[][] bestBiases = null;
+        int epoch = 0;
+        if(data.INPUT_WIDTH != aNetwork.INPUT_SIZE || data.TARGET_WIDTH != aNetwork.OUTPUT_SIZE) epochs = 0;
+        batchSize = Math.max(1, batchSize);
+        int[] order = null;
+        Random random = null;
+        if(aShuffle){
+            if(aOrder.length != data.SIZE) aOrder = new int[data.SIZE];
+            order = aOrder;
+            for(int i = 0; i < order.length; i++){
+                order[i] = i;
+            }
+            random = new Random(aShuffleSeed);
+        }
+        while(epoch < epochs){
+            if(updates >= stop.maxUpdates){
+                reason = TrainingResult.StopReason.MAX_UPDATES;
+                break;
+            }
+            TrainingEvents.Epoch event = new TrainingEvents.Epoch();
+            event.begin();
+            double eta = schedule.eta(epoch, mse);
+            double mseSum = 0;
+            int epochUpdates = 0;
+            if(order != null) Dataset.shuffle(order, random);
+            for(int from = 0; from < data.SIZE; from += batchSize){
+                if(updates >= stop.maxUpdates){
+                    reason = TrainingResult.StopReason.MAX_UPDATES;
+                    break;
+                }
+                if(unclocked >= CLOCK_SAMPLES && budget != Long.MAX_VALUE){
+                    unclocked = 0;
+                    if(System.nanoTime() - start >= budget){
+                        reason = TrainingResult.StopReason.TIME_BUDGET;
+                        break;
+                    }
+                }
+                int count = Math.min(batchSize, data.SIZE - from);
+                long updateStart = startUpdate();
+                if(order == null){
+                    if(batchSize == 1) aNetwork.train(data.inputs, data.targets, from, eta);
+                    else aNetwork.trainBatch(data.inputs, data.targets, from, count, eta);
+                }
+                else{
+                    if(batchSize == 1) aNetwork.train(data.inputs, data.targets, order[from], eta);
+                    else aNetwork.trainBatch(data.inputs, data.targets, order, from, count, eta);
+                }
+                afterUpdate(count, eta, updateStart);
+                unclocked += count;
+                mseSum += aNetwork.getMSE();
+                epochUpdates++;
+                updates++;
+            }
+            // an epoch stopped before its first update did not run
+            if(epochUpdates > 0 || reason == TrainingResult.StopReason.COMPLETED) epoch++;
+            if(reason != TrainingResult.StopReason.COMPLETED) break;
+            mse = epochUpdates == 0 ? Double.NaN : mseSum / epochUpdates;
+            monitored = stop.validation != null ? evaluate(stop.validation) : mse;
+            if(aMetrics != null) aMetrics.epoch(stop.validation != null ? monitored : Double.NaN);
+            if(event.shouldCommit()){
+                event.epoch = epoch - 1;
+                event.updates = epochUpdates;
+                event.trainMSE = mse;
+                event.validationMSE = stop.validation != null ? monitored : Double.NaN;
+                event.eta = eta;
+                event.commit();
+            }
+            if(aEpochListener != null){
+                aEpochListener.epochEnd(epoch - 1, mse, stop.validation != null ? monitored : Double.NaN, eta);
+            }
+            if(bestEpoch < 0 || monitored < best){
+                best = monitored;
+                bestEpoch = epoch - 1;
+                if(stop.restoreBest){
+                    if(bestWeights == null){
+                        bestWeights = new double[aNetwork.NETWORK_SIZE][];
+                        bestBiases = new double[aNetwork.NETWORK_SIZE][];
+                    }
+                    copyParameters(aNetwork.weights, aNetwork.biases, bestWeights, bestBiases);
+                }
+            }
+            if(monitored < patienceBest - stop.minDelta){
+                patienceBest = monitored;
+                stale = 0;
+            }
+            else if(++stale >= stop.patience){
+                reason = TrainingResult.StopReason.PATIENCE;
+                break;
+            }
+            if(monitored <= stop.targetMSE){
+                reason = TrainingResult.StopReason.TARGET_MSE;
+                break;
+            }
+        }
+        boolean restored = false;
+        if(bestWeights != null && (bestEpoch != epoch - 1 || reason == TrainingResult.StopReason.MAX_UPDATES
+                || reason == TrainingResult.StopReason.TIME_BUDGET)){
+            copyParameters(bestWeights, bestBiases, aNetwork.weights, aNetwork.biases);
+            aNetwork.modified();
+            aNetwork.setMSE(best);
+            restored = true;
+        }
+        return new TrainingResult(reason, best, bestEpoch, monitored, epoch, updates,
+                (System.nanoTime() - start) / 1_000_000, restored);
+    }
+
+    /**
+     * Joins several data sets, holds out a random part of them for validation and trains on the rest in a new
+     * random order every epoch. The validation set is monitored by stop (see StopCriteria) and reported to the
+     * epoch listener.
+     * @param datasets data sets to train on, widths matching the network
+     * @param validationFraction share of the samples held out for validation, 0 for none
+     * @param seed seed of the split and of the order of every epoch
+     * @param schedule learning rate of every epoch
+     * @param epochs largest number of passes over the training set
+     * @param batchSize number of samples per weight update, 1 or less for per-sample updates
+     * @param stop when to stop before running all epochs, its validation set is replaced by the held out part
+     * @return why training stopped and the best MSE reached
+     */
+    public TrainingResult train(Dataset[] datasets, double validationFraction, long seed, Schedule schedule,
+                                int epochs, int batchSize, StopCriteria stop){
+        Dataset[] split = Dataset.concat(datasets).split(validationFraction, seed);
+        stop.validation(split[1].SIZE > 0 ? split[1] : null);
+        boolean shuffle = aShuffle;
+        long shuffleSeed = aShuffleSeed;
+        setShuffle(true, seed);
+        try{
+            return train(split[0], schedule, epochs, batchSize, stop);
+        }
+        finally{
+            setShuffle(shuffle, shuffleSeed);
+        }
+    }
+
+    /**
+     * @return start time of a weight update for afterUpdate, only read when metrics are recorded
+     */
+    private long startUpdate(){
+        return aMetrics != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Bookkeeping after every weight update: records the metrics and lets the checkpointer count the update
+     * @param count number of samples of the update
+     * @param eta learning rate of the update
+     * @param start value of startUpdate() before the update
+     */
+    private void afterUpdate(int count, double eta, long start){
+        if(aMetrics != null) aMetrics.update(count, System.nanoTime() - start, aNetwork.getMSE(), eta);
+        if(aCheckpointer != null) aCheckpointer.afterUpdate();
+    }
+
+    /**
+     * Copies weights and biases shaped like Network.weights and Network.biases, allocating missing target arrays
+     */
+    private static void copyParameters(double[][] weights, double[][] biases, double[][] toWeights,
+                                       double[][] toBiases){
+        for(int layer = 1; layer < weights.length; layer++){
+            if(toWeights[layer] == null){
+                toWeights[layer] = new double[weights[layer].length];
+                toBiases[layer] = new double[biases[layer].length];
+            }
+            System.arraycopy(weights[layer], 0, toWeights[layer], 0, weights[layer].length);
+            System.arraycopy(biases[layer], 0, toBiases[layer], 0, biases[layer].length);
+        }
+    }
+
+    /**
+     * Mean squared error of aNetwork over a data set, without training or changing the network's state
+     * @param data samples to evaluate on, widths matching the network
+     * @return SUM((output - target)^2) / (data.SIZE * OUTPUT_SIZE), NaN if the data set is empty or does not match
+     */
+    public double evaluate(Dataset data){
+        if(data.SIZE == 0 || data.INPUT_WIDTH != aNetwork.INPUT_SIZE || data.TARGET_WIDTH != aNetwork.OUTPUT_SIZE){
+            return Double.NaN;
+        }
+        double[] input = new double[data.INPUT_WIDTH];
+        double[] output = new double[data.TARGET_WIDTH];
+        double sum = 0;
+        for(int sample = 0; sample < data.SIZE; sample++){
+            System.arraycopy(data.inputs, sample * data.INPUT_WIDTH, input, 0, data.INPUT_WIDTH);
+            aNetwork.infer(input, output);
+            for(int i = 0; i < output.length; i++){
+                double diff = output[i] - data.targets[sample * data.TARGET_WIDTH + i];
+                sum += diff * diff;
+            }
+        }
+        return sum / ((double) data.SIZE * data.TARGET_WIDTH);
+    }
+
+    /**
+     * Trains aNetwork on every sample of the data set once, in order
+     * @param data samples to train on, widths matching the network
+     * @param eta learning rate
+     * @param batchSize number of samples per weight update, 1 or less for per-sample updates
+     * @return mean of Network.getMSE() over the updates, NaN if nothing was trained
+     */
+    public double trainEpoch(Dataset data, double eta, int batchSize){
+        if(data.INPUT_WIDTH != aNetwork.INPUT_SIZE || data.TARGET_WIDTH != aNetwork.OUTPUT_SIZE) return Double.NaN;
+        batchSize = Math.max(1, batchSize);
+        double mseSum = 0;
+        int updates = 0;
+        for(int from = 0; from < data.SIZE; from += batchSize){
+            int count = Math.min(batchSize, data.SIZE - from);
+            long start = startUpdate();
+            if(batchSize == 1){
+                aNetwork.train(data.inputs, data.targets, from, eta);
+            }
+            else{
+                aNetwork.trainBatch(data.inputs, data.targets, from, count, eta);
+            }
+            afterUpdate(count, eta, start);
+            mseSum += aNetwork.getMSE();
+            updates++;
+        }
+        return updates == 0 ? Double.NaN : mseSum / updates;
+    }
+
+    /**
+     * Trains aNetwork once on every sample of a source, in mini-batches of batchSize consecutive samples.
+     * A background thread reads blocks of blockSize samples from the source while the current block trains,
+     * at most prefetch blocks ahead. Memory use depends only on the block size, not on the size of the source.
+     * The source is not closed.
+     * @param source samples to train on, widths matching the network
+     * @param eta learning rate
+     * @param batchSize number of samples per weight update, 1 or less for per-sample updates
+     * @param blockSize number of samples read from the source at a time, rounded up to a multiple of batchSize
+     * @param prefetch number of blocks read ahead of the one training
+     * @return number of samples trained on
+     * @throws IOException in the case the source cannot be read
+     */
+    public long train(SampleSource source, double eta, int batchSize, int blockSize, int prefetch) throws IOException {
+        int inputWidth = source.getInputWidth();
+        int targetWidth = source.getTargetWidth();
+        if(inputWidth != aNetwork.INPUT_SIZE || targetWidth != aNetwork.OUTPUT_SIZE) return 0;
+        batchSize = Math.max(1, batchSize);
+        int rows = (Math.max(blockSize, batchSize) + batchSize - 1) / batchSize * batchSize;
+        int blocks = Math.max(1, prefetch) + 1;
+        BlockingQueue<Block> free = new ArrayBlockingQueue<>(blocks);
+        BlockingQueue<Block> full = new ArrayBlockingQueue<>(blocks + 1);
+        for(int i = 0; i < blocks; i++){
+            free.add(new Block(rows * inputWidth, rows * targetWidth));
+        }
+        Thread reader = new Thread(() -> {
+            try{
+                int read;
+                do{
+                    Block block = free.take();
+                    TrainingEvents.DataLoad event = new TrainingEvents.DataLoad();
+                    event.begin();
+                    read = block.rows = source.read(block.inputs, block.targets, rows);
+                    if(event.shouldCommit()){
+                        event.samples = read;
+                        event.bytes = 8L * read * (inputWidth + targetWidth);
+                        event.source = "stream";
+                        event.commit();
+                    }
+                    full.put(block);
+                }
+                while(read > 0);
+            }
+            catch(IOException | RuntimeException e){
+                full.offer(new Block(e));
+            }
+            catch(InterruptedException e){
+                // training stopped early
+            }
+        }, "sample-prefetch");
+        reader.setDaemon(true);
+        reader.start();
+        long samples = 0;
+        try{
+            Block block;
+            while((block = full.take()).rows > 0){
+                if(batchSize == 1){
+                    for(int sample = 0; sample < block.rows; sample++){
+                        long start = startUpdate();
+                        aNetwork.train(block.inputs, block.targets, sample, eta);
+                        afterUpdate(1, eta, start);
+                    }
+                }
+                else{
+                    for(int from = 0; from < block.rows; from += batchSize){
+                        int count = Math.min(batchSize, block.rows - from);
+                        long start = startUpdate();
+                        aNetwork.trainBatch(block.inputs, block.targets, from, count, eta);
+                        afterUpdate(count, eta, start);
+                    }
+                }
+                samples += block.rows;
+                free.put(block);
+            }
+            if(block.failure != null) throw block.failure;
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while training", e);
+        }
+        finally{
+            reader.interrupt();
+        }
+        return samples;
+    }
+
+    /**
+     * A block of samples handed from the prefetch thread of train(SampleSource, ...) to the training thread
+     */
+    private static final class Block{
+        private final double[] inputs;
+        private final double[] targets;
+        private int rows;
+        private final IOException failure;
+
+        Block(int inputValues, int targetValues){
+            inputs = new double[inputValues];
+            targets = new double[targetValues];
+            failure = null;
+        }
+
+        /**
+         * Marks the end of the source after the reader failed
+         */
+        Block(Exception cause){
+            inputs = null;
+            targets = null;
+            failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Trains aNetwork for a number of passes over the data set on several threads of a ForkJoinPool.
+     * SYNCHRONOUS: each batch of batchSize samples is split evenly across the workers, the workers' gradients
+     * are averaged and applied once per batch, same result as Network.trainBatch up to rounding.
+     * HOGWILD: each worker gets a contiguous part of the data set and runs per-sample updates on the shared
+     * weights without locking, batchSize is ignored. Updates from different workers can overwrite each other.
+     * Checkpoints taken during HOGWILD training copy the weights while other workers are updating them.
+     * @param input nxm matrix of input values
+     * @param target nxw matrix of target values
+     * @param eta learning rate
+     * @param epochs number of passes over the data set
+     * @param batchSize number of samples per weight update in SYNCHRONOUS mode, 1 or less for per-sample updates
+     * @param workers number of threads to train on
+     * @param mode how the workers' updates are combined
+     */
+    public void trainParallel(double[][] input, double[][] target, double eta, int epochs, int batchSize,
+                              int workers, ParallelMode mode){
+        for(int i = 0; i < input.length; i++){
+            if(input[i].length != aNetwork.INPUT_SIZE || target[i].length != aNetwork.OUTPUT_SIZE) return;
+        }
+        workers = Math.max(1, Math.min(workers, input.length));
+        // a batch smaller than the number of workers leaves some of them without samples, not a larger batch
+        batchSize = Math.max(1, batchSize);
+        Shard[] shards = new Shard[workers];
+        for(int w = 0; w < workers; w++){
+            shards[w] = new Shard(aNetwork, input, target, eta, mode);
+        }
+        // in HOGWILD mode the first worker drives the checkpoints, counting an update for every worker
+        if(mode == ParallelMode.HOGWILD){
+            shards[0].checkpointer = aCheckpointer;
+            shards[0].workers = workers;
+        }
+        for(Shard shard : shards){
+            shard.metrics = aMetrics;
+        }
+        ShardGroup group = new ShardGroup(shards);
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try{
+            if(mode == ParallelMode.HOGWILD){
+                split(shards, 0, input.length);
+                for(Shard shard : shards){
+                    shard.epochs = epochs;
+                }
+                pool.invoke(group);
+                Network.Workspace total = shards[0].ws;
+                for(int w = 1; w < workers; w++){
+                    total.squaredError += shards[w].ws.squaredError;
+                    total.samples += shards[w].ws.samples;
+                }
+                if(total.samples > 0){
+                    aNetwork.setMSE(total.squaredError / (total.samples * aNetwork.OUTPUT_SIZE));
+                }
+                return;
+            }
+            for(int epoch = 0; epoch < epochs; epoch++){
+                for(int from = 0; from < input.length; from += batchSize){
+                    long start = startUpdate();
+                    split(shards, from, Math.min(from + batchSize, input.length));
+                    group.reinitialize();
+                    pool.invoke(group);
+                    Network.Workspace total = shards[0].ws;
+                    for(int w = 1; w < workers; w++){
+                        total.add(shards[w].ws);
+                        shards[w].ws.clear();
+                    }
+                    aNetwork.applyGradients(total, eta);
+                    total.clear();
+                    afterUpdate(Math.min(batchSize, input.length - from), eta, start);
+                }
+            }
+        }
+        finally{
+            pool.shutdown();
+            aNetwork.applyPruningMask();
+        }
+    }
+
+    /**
+     * Splits the samples from .. to - 1 evenly across the shards
+     */
+    private static void split(Shard[] shards, int from, int to){
+        int count = to - from;
+        for(int w = 0; w < shards.length; w++){
+            shards[w].from = from + (int) ((long) count * w / shards.length);
+            shards[w].to = from + (int) ((long) count * (w + 1) / shards.length);
+        }
+    }
+
+    /**
+     * The part of the data set one worker of trainParallel is responsible for
+     */
+    private static final class Shard extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+
+        private final Network network;
+        private final Network.Workspace ws;
+        private final double[][] input;
+        private final double[][] target;
+        private final double eta;
+        private final ParallelMode mode;
+        private int from;
+        private int to;
+        private int epochs;
+        private Checkpointer checkpointer;
+        private int workers;
+        private Metrics metrics;
+
+        Shard(Network network, double[][] input, double[][] target, double eta, ParallelMode mode){
+            this.network = network;
+            this.ws = new Network.Workspace(network);
+            this.input = input;
+            this.target = target;
+            this.eta = eta;
+            this.mode = mode;
+        }
+
+        @Override
+        protected void compute(){
+            if(mode == ParallelMode.SYNCHRONOUS){
+                for(int i = from; i < to; i++){
+                    network.accumulateGradients(input[i], target[i], ws);
+                }
+                return;
+            }
+            for(int epoch = 0; epoch < epochs; epoch++){
+                // keep only the error of the last epoch
+                ws.squaredError = 0;
+                ws.samples = 0;
+                for(int i = from; i < to; i++){
+                    long start = metrics != null ? System.nanoTime() : 0;
+                    network.trainHogwild(input[i], target[i], eta, ws);
+                    // the MSE of a single worker's sample is not tracked, only the rate and the latency
+                    if(metrics != null) metrics.update(1, System.nanoTime() - start, Double.NaN, eta);
+                    if(checkpointer != null) checkpointer.afterUpdates(workers);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs all shards of trainParallel and waits for them
+     */
+    private static final class ShardGroup extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+
+        private final Shard[] shards;
+
+        ShardGroup(Shard[] shards){
+            this.shards = shards;
+        }
+
+        @Override
+        protected void compute(){
+            for(Shard shard : shards){
+                shard.reinitialize();
+            }
+            invokeAll(shards);
+        }
+    }
+
+    /**
+     * Prints the training throughput (samples/sec) of trainParallel for 1 up to all available cores
+     * in both modes, on random data for a network of the given shape.
+     * @param layerSizes shape of the network to train
+     * @param samples number of random samples in the data set
+     * @param epochs number of passes over the data set per measurement
+     * @param batchSize batch size of the SYNCHRONOUS mode
+     */
+    public static void parallelScalingReport(int[] layerSizes, int samples, int epochs, int batchSize){
+        double[][] input = new double[samples][layerSizes[0]];
+        double[][] target = new double[samples][layerSizes[layerSizes.length - 1]];
+        for(int i = 0; i < samples; i++){
+            for(int j = 0; j < input[i].length; j++){
+                input[i][j] = Math.random();
+            }
+            target[i][(int) (Math.random() * target[i].length)] = 1;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("Network " + Arrays.toString(layerSizes) + ", " + samples + " samples, batch " + batchSize);
+        System.out.println("workers\tmode\tsamples/sec\tMSE");
+        for(ParallelMode mode : ParallelMode.values()){
+            // warm up
+            new Trainer(new Network(layerSizes)).trainParallel(input, target, 0.3, 1, batchSize, cores, mode);
+            // 1, 2, 4, ... and every core last
+            for(int workers = 1; ; workers = Math.min(workers * 2, cores)){
+                Trainer trainer = new Trainer(new Network(layerSizes));
+                long start = System.nanoTime();
+                trainer.trainParallel(input, target, 0.3, epochs, batchSize, workers, mode);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%d\t%s\t%.0f\t%.5f%n", workers, mode,
+                        (double) samples * epochs / seconds, trainer.aNetwork.getMSE());
+                if(workers >= cores) break;
+            }
+        }
+    }
+
+    /**
+     * Gets distance sensor and corresponding target value data from a .csv file.
+     * Goes through Dataset.load, so the file is only parsed again when it changes.
      * @param pathname filepath for the .csv file
      * @return 3D int array. At the fist index you get the sensor input data by line in a 2D matrix
      * and the second index you get the target values by line in a 2D matrix
      * @throws IOException in the case that the file to read from cannot be found
      */
     public static double[][][] getDataFromFile(String pathname) throws IOException {
-        File data = new File(pathname);
-        Scanner scanner = new Scanner(data);
-        int numOfLines = 0;
-        while(scanner.hasNextLine()){
-            scanner.nextLine();
-            numOfLines++;
-        }
-        scanner.close();
-
-        double[][][] trueOut = new double[2][numOfLines][];
-        for(int i = 0; i < numOfLines; i++){
-            trueOut[0][i] = new double[4];
-            trueOut[1][i] = new double[12];
-        }
-        Scanner in = new Scanner(new File(pathname));
-        int i = 0;
-        while(in.hasNextLine()){
-            String line = in.nextLine();
-            double[] input = new double[4];
-            double[] target = new double[12];
-            // SOURCE: https://stackoverflow.com/questions/18838781/converting-string-array-to-an-integer-array
-            int[] numbers = Arrays.stream(line.split(", ")).mapToInt(Integer::parseInt).toArray();
-            for(int j = 0; j < 16; j++){
-                if(j < 4){
-                    input[j] = numbers[j];
-                    continue;
-                }
-//                System.out.println(numOfLines);
-//                System.out.println(j);
-                target[j - 4] = numbers[j];
-            }
-            trueOut[0][i] = input;
-            trueOut[1][i] = target;
-            i++;
-        }
-        in.close();
-        return trueOut;
+        return Dataset.load(pathname).toArrays();
     }
 
     /**
@@ -112,7 +768,10 @@ public class Trainer {
                         {0, 1}};
         Network network = new Network(new int[]{2, 2, 2, 2});
         Trainer trainer = new Trainer(network);
-        trainer.train(orInput, orTarget, 0.3, 100000, 100);
+        // stops as soon as the error is small enough instead of running a fixed number of iterations
+        TrainingResult result = trainer.train(Dataset.fromArrays(orInput, orTarget), new Schedule.Constant(0.3),
+                Integer.MAX_VALUE, 1, new StopCriteria().targetMSE(1e-3).maxUpdates(800_000).restoreBest(true));
+        System.out.println(result);
         //network.saveNetwork("OR_NETWORK.txt");
         //Network.loadNetwork("OR_NETWORK.txt");
         network.feedForward(testInput);
@@ -121,6 +780,42 @@ public class Trainer {
         }
     }
 
+    /**
+     * Sets the checkpointer to notify after every weight update
+     * @param pCheckpointer checkpointer for aNetwork, null to stop checkpointing
+     */
+    public void setCheckpointer(Checkpointer pCheckpointer){
+        aCheckpointer = pCheckpointer;
+    }
+
+    /**
+     * Sets the metrics to record the progress of training in: samples, updates and epochs, the MSE and
+     * learning rate, and the duration of every update
+     * @param pMetrics metrics, possibly shared with other trainers and networks, null to stop recording
+     */
+    public void setMetrics(Metrics pMetrics){
+        aMetrics = pMetrics;
+    }
+
+    /**
+     * Sets the listener notified at the end of every epoch of train(Dataset, Schedule, int, int, StopCriteria)
+     * @param pEpochListener listener, null for none
+     */
+    public void setEpochListener(EpochListener pEpochListener){
+        aEpochListener = pEpochListener;
+    }
+
+    /**
+     * Makes the epoch loop visit the samples in a new random order every epoch.
+     * The permutation is allocated once and reshuffled in place, the same seed gives the same orders.
+     * @param pShuffle whether to shuffle, without shuffling the samples are visited in order
+     * @param pSeed seed of the orders
+     */
+    public void setShuffle(boolean pShuffle, long pSeed){
+        aShuffle = pShuffle;
+        aShuffleSeed = pSeed;
+    }
+
     public Network getaNetwork(){
         return aNetwork;
     }
@@ -160,46 +855,12 @@ public class Trainer {
 //        Network network = new Network(layerSizes);
 //        Trainer trainer = new Trainer(network);
 
-//        trainer.train(Trainer.getDataFromFile("along_left_side.txt")[0],
-//                Trainer.getDataFromFile("along_left_side.txt")[1], 0.3, 100000, 10);
-//
-//        trainer.train(Trainer.getDataFromFile("towards_wall.txt")[0],
-//                Trainer.getDataFromFile("towards_wall.txt")[1], 0.3, 100000, 10);
-//
-//        trainer.train(Trainer.getDataFromFile("along_right_side.txt")[0],
-//                Trainer.getDataFromFile("along_right_side.txt")[1], 0.3, 100000, 10);
-//
-//        trainer.train(Trainer.getDataFromFile("away_from_wall.txt")[0],
-//                Trainer.getDataFromFile("away_from_wall.txt")[1], 0.3, 100000, 10);
-//
-//        /////////////////////////////////////////////////////////////////////////////////////////////////////////
-//
-//
-//        trainer.train(Trainer.getDataFromFile("towards_wall.txt")[0],
-//                Trainer.getDataFromFile("towards_wall.txt")[1], 0.3, 100000, 10);
-//
-//        trainer.train(Trainer.getDataFromFile("along_left_side.txt")[0],
-//                Trainer.getDataFromFile("along_left_side.txt")[1], 0.3, 100000, 10);
-//
-//        trainer.train(Trainer.getDataFromFile("away_from_wall.txt")[0],
-//                Trainer.getDataFromFile("away_from_wall.txt")[1], 0.3, 100000, 10);
-//
-//        trainer.train(Trainer.getDataFromFile("along_right_side.txt")[0],
-//                Trainer.getDataFromFile("along_right_side.txt")[1], 0.3, 100000, 10);
-//
-//        //////////////////////////////////////////////////////////////////////////////////////////////////////////
-//
-//        trainer.train(Trainer.getDataFromFile("away_from_wall.txt")[0],
-//                Trainer.getDataFromFile("away_from_wall.txt")[1], 0.3, 100000, 10);
-//
-//        trainer.train(Trainer.getDataFromFile("along_right_side.txt")[0],
-//                Trainer.getDataFromFile("along_right_side.txt")[1], 0.3, 100000, 10);
-//
-//        trainer.train(Trainer.getDataFromFile("along_left_side.txt")[0],
-//                Trainer.getDataFromFile("along_left_side.txt")[1], 0.3, 100000, 10);
-//
-//        trainer.train(Trainer.getDataFromFile("towards_wall.txt")[0],
-//                Trainer.getDataFromFile("towards_wall.txt")[1], 0.3, 100000, 10);
+//        Dataset[] recordings = {Dataset.load("along_left_side.txt"), Dataset.load("towards_wall.txt"),
+//                Dataset.load("along_right_side.txt"), Dataset.load("away_from_wall.txt")};
+//        trainer.setEpochListener((epoch, trainMSE, validationMSE, eta) ->
+//                System.out.printf("epoch %d: train %.5f validation %.5f%n", epoch, trainMSE, validationMSE));
+//        System.out.println(trainer.train(recordings, 0.2, 42, new Schedule.Constant(0.3), 1000, 1,
+//                new StopCriteria().patience(20, 0).restoreBest(true)));
 
         //Network network = Network.loadNetwork("trained_network_test.txt");
         //Network network = new Network(new int[]{});
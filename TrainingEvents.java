@@ -0,0 +1,170 @@
+package nn.DenisAleksandrov;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events of the training phases, recorded with any JFR recording, e.g.
+ * java -XX:StartFlightRecording:filename=training.jfr ... and read with jfr print --events 'nn.*' training.jfr
+ * or JDK Mission Control.
+ *
+ * The per-update phases (Forward, Backprop, Update) fire millions of times, they are thresholded so that only
+ * slow ones are written: by default 1 ms, lowered in a .jfc file or in JMC when every update should be seen.
+ * Data loading, checkpoints and epochs are written every time.
+ * Without a recording running, an event costs a check that the JIT folds away; the event objects are not
+ * allocated since they never escape the method that records them.
+ */
+public final class TrainingEvents {
+    private TrainingEvents(){
+    }
+
+    /**
+     * Forward pass of a sample or a mini-batch through feedForward or one of the training methods
+     */
+    @Name("nn.Forward")
+    @Label("Forward Pass")
+    @Category({"Neural Network", "Training"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class Forward extends Event{
+        @Label("Samples")
+        int samples;
+
+        static Forward start(){
+            Forward event = new Forward();
+            event.begin();
+            return event;
+        }
+
+        void finish(int samples){
+            end();
+            if(shouldCommit()){
+                this.samples = samples;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Backward pass computing the error signals, and the gradients for mini-batches
+     */
+    @Name("nn.Backprop")
+    @Label("Backpropagation")
+    @Category({"Neural Network", "Training"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class Backprop extends Event{
+        @Label("Samples")
+        int samples;
+
+        static Backprop start(){
+            Backprop event = new Backprop();
+            event.begin();
+            return event;
+        }
+
+        void finish(int samples){
+            end();
+            if(shouldCommit()){
+                this.samples = samples;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Change of the weights and biases, through the optimizer if one is set
+     */
+    @Name("nn.Update")
+    @Label("Weight Update")
+    @Category({"Neural Network", "Training"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class Update extends Event{
+        @Label("Samples")
+        int samples;
+        @Label("Learning Rate")
+        double eta;
+
+        static Update start(){
+            Update event = new Update();
+            event.begin();
+            return event;
+        }
+
+        void finish(int samples, double eta){
+            end();
+            if(shouldCommit()){
+                this.samples = samples;
+                this.eta = eta;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A recording or a block of samples read for training
+     */
+    @Name("nn.DataLoad")
+    @Label("Data Load")
+    @Category({"Neural Network", "I/O"})
+    @StackTrace(false)
+    public static final class DataLoad extends Event{
+        @Label("Path")
+        String path;
+        @Label("Samples")
+        int samples;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Source")
+        @Description("cache, parse or stream")
+        String source;
+    }
+
+    /**
+     * A checkpoint written by Checkpointer, on its writer thread
+     */
+    @Name("nn.Checkpoint")
+    @Label("Checkpoint")
+    @Category({"Neural Network", "I/O"})
+    @StackTrace(false)
+    public static final class CheckpointWrite extends Event{
+        @Label("Path")
+        String path;
+        @Label("Updates")
+        @Description("Updates counted when the snapshot was taken")
+        long updates;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    /**
+     * One epoch of Trainer.train(Dataset, Schedule, int, int, StopCriteria), including its validation
+     */
+    @Name("nn.Epoch")
+    @Label("Epoch")
+    @Category({"Neural Network", "Training"})
+    @StackTrace(false)
+    public static final class Epoch extends Event{
+        @Label("Epoch")
+        int epoch;
+        @Label("Updates")
+        int updates;
+        @Label("Training MSE")
+        double trainMSE;
+        @Label("Validation MSE")
+        double validationMSE;
+        @Label("Learning Rate")
+        double eta;
+    }
+}
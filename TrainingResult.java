@@ -0,0 +1,74 @@
+package nn.DenisAleksandrov;
+
+/**
+ * Outcome of Trainer.train(Dataset, Schedule, int, int, StopCriteria)
+ */
+public class TrainingResult {
+    /**
+     * Why training stopped
+     */
+    public enum StopReason{
+        /**
+         * All epochs ran
+         */
+        COMPLETED,
+        /**
+         * The monitored MSE reached the target MSE
+         */
+        TARGET_MSE,
+        /**
+         * The monitored MSE stopped improving
+         */
+        PATIENCE,
+        /**
+         * The wall-clock budget ran out
+         */
+        TIME_BUDGET,
+        /**
+         * The maximum number of updates was reached
+         */
+        MAX_UPDATES
+    }
+
+    public final StopReason reason;
+    /**
+     * Best monitored MSE at the end of an epoch, NaN if no epoch finished
+     */
+    public final double bestMSE;
+    /**
+     * Epoch the best MSE was reached in, from 0, -1 if no epoch finished
+     */
+    public final int bestEpoch;
+    /**
+     * Monitored MSE at the end of the last finished epoch, NaN if no epoch finished
+     */
+    public final double lastMSE;
+    /**
+     * Number of epochs run, the last one possibly cut short
+     */
+    public final int epochs;
+    public final long updates;
+    public final long millis;
+    /**
+     * Whether the weights of the best epoch were put back
+     */
+    public final boolean restored;
+
+    TrainingResult(StopReason reason, double bestMSE, int bestEpoch, double lastMSE, int epochs, long updates,
+                   long millis, boolean restored){
+        this.reason = reason;
+        this.bestMSE = bestMSE;
+        this.bestEpoch = bestEpoch;
+        this.lastMSE = lastMSE;
+        this.epochs = epochs;
+        this.updates = updates;
+        this.millis = millis;
+        this.restored = restored;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("%s after %d epochs, %d updates, %d ms, best MSE %.6f in epoch %d%s", reason, epochs,
+                updates, millis, bestMSE, bestEpoch, restored ? " (restored)" : "");
+    }
+}
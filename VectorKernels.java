@@ -0,0 +1,96 @@
+package nn.DenisAleksandrov;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of the kernels on the widest vector shape the CPU supports.
+ * Needs --add-modules jdk.incubator.vector at compile and run time, Kernels falls back to the scalar code without it.
+ * The dot product sums in a different order than the scalar loop, so results match it within rounding only.
+ * axpy is left to the scalar loop, which the JIT already vectorizes and which was faster at every measured length.
+ */
+final class VectorKernels extends Kernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    /**
+     * Shortest dot product worth vectorizing, measured on 128, 256 and 512 bit vectors: below two vectors the
+     * setup and the lane reduction cost more than the scalar loop saves
+     */
+    private static final int MIN_DOT = 2 * SPECIES.length();
+
+    /**
+     * Species of the int8 dot product, set up on its first use so that a CPU without a matching byte shape only
+     * loses the SIMD int8 kernel, not the double one
+     */
+    private static final class Int8{
+        /**
+         * Bytes loaded per step, one for every int lane they are widened into but at least 64 bits, the smallest
+         * byte shape, null if the CPU has no such shape
+         */
+        static final VectorSpecies<Byte> BYTE_SPECIES = byteSpecies();
+        /**
+         * Number of int vectors the bytes of one step are widened into
+         */
+        static final int PARTS = BYTE_SPECIES == null ? 0 : BYTE_SPECIES.length() / INT_SPECIES.length();
+
+        private static VectorSpecies<Byte> byteSpecies(){
+            try{
+                return VectorSpecies.of(byte.class,
+                        VectorShape.forBitSize(Math.max(64, INT_SPECIES.length() * Byte.SIZE)));
+            }
+            catch(IllegalArgumentException e){
+                return null;
+            }
+        }
+    }
+
+    @Override
+    String name(){
+        return "vector-" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    double dot(double[] a, int aOff, double[] b, int bOff, int n){
+        if(n < MIN_DOT) return super.dot(a, aOff, b, bOff, n);
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        for(; i < bound; i += SPECIES.length()){
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+            acc = acc.add(va.mul(vb));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for(; i < n; i++){
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    @Override
+    int dot(byte[] a, int aOff, byte[] b, int bOff, int n){
+        VectorSpecies<Byte> species = Int8.BYTE_SPECIES;
+        if(species == null) return super.dot(a, aOff, b, bOff, n);
+        int i = 0;
+        int bound = species.loopBound(n);
+        IntVector acc = IntVector.zero(INT_SPECIES);
+        for(; i < bound; i += species.length()){
+            ByteVector va = ByteVector.fromArray(species, a, aOff + i);
+            ByteVector vb = ByteVector.fromArray(species, b, bOff + i);
+            for(int part = 0; part < Int8.PARTS; part++){
+                IntVector wa = (IntVector) va.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+                IntVector wb = (IntVector) vb.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+                acc = acc.add(wa.mul(wb));
+            }
+        }
+        int sum = acc.reduceLanes(VectorOperators.ADD);
+        for(; i < n; i++){
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,286 @@
+package nn.DenisAleksandrov.dataHarvester;
+
+/**********************************************************************
+ * A robot in a World: its position, the direction it faces, the
+ * movement rules of the arrow keys and its four distance sensors.
+ * Not thread safe, every thread drives its own robots.
+ ***********************************************************************/
+
+public class Robot {
+    public static final int STEP = 5;
+    // distances at or above FAR_DISTANCE are FAR, at or below BLOCKING_DISTANCE BLOCKING, NEAR in between
+    public static final int FAR_DISTANCE = 20;
+    public static final int BLOCKING_DISTANCE = 5;
+    // number of values in a sample: four distances followed by their FAR, NEAR and BLOCKING flags
+    public static final int SAMPLE_WIDTH = 16;
+    public static final int SENSORS = 4;
+
+    private final World world;
+    private int x1; // robot location
+    private int y1; // robot location
+    private final int x2 = 5; // robot width
+    private final int y2 = 5; // robot height
+    private char direction; // n-north(up), s-south, e-east(right), w-west
+    private int sensor_forward_distance;
+    private int sensor_back_distance;
+    private int sensor_RD_distance;
+    private int sensor_LD_distance;
+
+    /**
+     * Places a robot, its sensors read nothing until the first sense
+     * @param world world to move in
+     * @param x left edge of the robot
+     * @param y top edge of the robot
+     * @param direction n, s, e or w
+     */
+    public Robot(World world, int x, int y, char direction) {
+        this.world = world;
+        x1 = x;
+        y1 = y;
+        this.direction = direction;
+        sensor_forward_distance = y1;
+        sensor_back_distance = world.HEIGHT - y1;
+    }
+
+    /**
+     * Turns the robot and moves it STEP forward, as the arrow keys of the harvester do. Near the edge of the world
+     * the key is ignored. The robot only turns, without moving, if the forward distance last sensed, which may be
+     * in the direction it faced before turning, is BLOCKING_DISTANCE or less.
+     * @param key n, s, e or w
+     * @return false if the key was ignored
+     */
+    public boolean move(char key) {
+        switch(key) {
+            case 'w':
+                if (x1 - 10 > 0) {
+                    if (sensor_forward_distance > BLOCKING_DISTANCE) x1 -= STEP;
+                    direction = 'w';
+                    return true;
+                }
+                return false;
+            case 'e':
+                if (x1 + 10 < world.WIDTH) {
+                    if (sensor_forward_distance > BLOCKING_DISTANCE) x1 += STEP;
+                    direction = 'e';
+                    return true;
+                }
+                return false;
+            case 'n':
+                if (y1 - 10 > 0) {
+                    if (sensor_forward_distance > BLOCKING_DISTANCE) y1 -= STEP;
+                    direction = 'n';
+                    return true;
+                }
+                return false;
+            case 's':
+                if (y1 + 10 < world.HEIGHT) {
+                    if (sensor_forward_distance > BLOCKING_DISTANCE) y1 += STEP;
+                    direction = 's';
+                    return true;
+                }
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the robot along x without any check, as the buttons of the harvester do
+     */
+    public void shift(int dx) {
+        x1 += dx;
+    }
+
+    /**
+     * Measures the four sensor distances by walking from the robot's edges until a wall or the edge of the world
+     */
+    public void sense() {
+        char[][] world = this.world.cells;
+        int width = this.world.WIDTH;
+        int height = this.world.HEIGHT;
+        int x,y,diagonal;
+        switch(direction) {
+            case 'n':
+                y = y1;
+                while(y>0 && world[x1][y]!='B') y--;
+                sensor_forward_distance = Math.abs((y==0)? y1: y-y1);
+                y = y1+y2;
+                while(y<height && world[x1][y]!='B') y++;
+                sensor_back_distance = Math.abs(y-y1-y2);
+                x = x1;
+                y = y1;
+                diagonal = 0;
+                while((x>0 && y>0) && world[x][y]!='B'){
+                    x--;
+                    y--;
+                    diagonal++;
+                }
+                sensor_LD_distance = diagonal;
+                x = x1+x2;
+                y = y1;
+                diagonal = 0;
+                while((x<width && y>0) && world[x][y]!='B'){
+                    x++;
+                    y--;
+                    diagonal++;
+                }
+                sensor_RD_distance = diagonal;
+                break;
+            case 's':
+                y = y1+y2;
+                while(y<height && world[x1][y]!='B') y++;
+                sensor_forward_distance = Math.abs(y-y1-y2);
+                y = y1;
+                while(y>0 && world[x1][y]!='B') y--;
+                sensor_back_distance = Math.abs((y==0)? y1: y-y1);
+                x = x1+x2;
+                y = y1+y2;
+                diagonal = 0;
+                while((x<width && y<height) && world[x][y]!='B'){
+                    x++;
+                    y++;
+                    diagonal++;
+                }
+                sensor_LD_distance = diagonal;
+                x = x1;
+                y = y1+y2;
+                diagonal = 0;
+                while((x>0 && y<height) && world[x][y]!='B'){
+                    x--;
+                    y++;
+                    diagonal++;
+                }
+                sensor_RD_distance = diagonal;
+                break;
+            case 'e':
+                x = x1+x2;
+                while(x<width && world[x][y1]!='B') x++;
+                sensor_forward_distance = Math.abs(x-x1-x2);
+                x = x1;
+                while(x>0 && world[x][y1]!='B') x--;
+                sensor_back_distance = Math.abs((x==0)? x1: x-x1);
+                x = x1+x2;
+                y = y1;
+                diagonal = 0;
+                while((x<width && y>0) && world[x][y]!='B'){
+                    x++;
+                    y--;
+                    diagonal++;
+                }
+                sensor_LD_distance = diagonal;
+                x = x1+x2;
+                y = y1+y2;
+                diagonal = 0;
+                while((x<width && y<height) && world[x][y]!='B'){
+                    x++;
+                    y++;
+                    diagonal++;
+                }
+                sensor_RD_distance = diagonal;
+                break;
+            case 'w':
+                x = x1;
+                while(x>0 && world[x][y1]!='B') x--;
+                sensor_forward_distance = Math.abs((x==0)? x1:x-x1);
+                x = x1+x2;
+                while(x<width && world[x][y1]!='B') x++;
+                sensor_back_distance = Math.abs(x-x1-x2);
+                x = x1;
+                y = y1+y2;
+                diagonal = 0;
+                while((x>0 && y<height) && world[x][y]!='B'){
+                    x--;
+                    y++;
+                    diagonal++;
+                }
+                sensor_LD_distance = diagonal;
+                x = x1;
+                y = y1;
+                // the RD count goes on from the LD count, recorded data has always been measured this way
+                while((x>0 && y>0) && world[x][y]!='B'){
+                    x--;
+                    y--;
+                    diagonal++;
+                }
+                sensor_RD_distance = diagonal;
+                break;
+        }
+    }
+
+    /**
+     * Writes the last sensed sample: LD, F, RD and B distances at indices 0 to 3, then FAR, NEAR and BLOCKING
+     * flags for each of them, LD at 4 to 6, F at 7 to 9, RD at 10 to 12 and B at 13 to 15
+     * @param trainArray receives SAMPLE_WIDTH values from offset
+     */
+    public void label(int[] trainArray, int offset) {
+        trainArray[offset] = sensor_LD_distance;
+        trainArray[offset + 1] = sensor_forward_distance;
+        trainArray[offset + 2] = sensor_RD_distance;
+        trainArray[offset + 3] = sensor_back_distance;
+        for(int i = SENSORS; i < SAMPLE_WIDTH; i++) trainArray[offset + i] = 0;
+        trainArray[offset + SENSORS + getState(sensor_LD_distance)] = 1;
+        trainArray[offset + SENSORS + 3 + getState(sensor_forward_distance)] = 1;
+        trainArray[offset + SENSORS + 6 + getState(sensor_RD_distance)] = 1;
+        trainArray[offset + SENSORS + 9 + getState(sensor_back_distance)] = 1;
+    }
+
+    /**
+     * Writes the last sensed sample as an input and a target vector, see Dataset and label
+     * @param inputs receives the SENSORS distances from inputOffset
+     * @param targets receives the 3 * SENSORS flags from targetOffset, expected to hold zeros
+     */
+    public void label(double[] inputs, int inputOffset, double[] targets, int targetOffset) {
+        inputs[inputOffset] = sensor_LD_distance;
+        inputs[inputOffset + 1] = sensor_forward_distance;
+        inputs[inputOffset + 2] = sensor_RD_distance;
+        inputs[inputOffset + 3] = sensor_back_distance;
+        targets[targetOffset + getState(sensor_LD_distance)] = 1;
+        targets[targetOffset + 3 + getState(sensor_forward_distance)] = 1;
+        targets[targetOffset + 6 + getState(sensor_RD_distance)] = 1;
+        targets[targetOffset + 9 + getState(sensor_back_distance)] = 1;
+    }
+
+    /**
+     * @return 0 for FAR, 1 for NEAR and 2 for BLOCKING
+     */
+    static int getState(int dataValue) {
+        if(dataValue >= FAR_DISTANCE) return 0;
+        if(dataValue > BLOCKING_DISTANCE) return 1;
+        return 2;
+    }
+
+    public int getX() {
+        return x1;
+    }
+
+    public int getY() {
+        return y1;
+    }
+
+    public int getWidth() {
+        return x2;
+    }
+
+    public int getHeight() {
+        return y2;
+    }
+
+    public char getDirection() {
+        return direction;
+    }
+
+    public int getForwardDistance() {
+        return sensor_forward_distance;
+    }
+
+    public int getBackDistance() {
+        return sensor_back_distance;
+    }
+
+    public int getLeftDiagonalDistance() {
+        return sensor_LD_distance;
+    }
+
+    public int getRightDiagonalDistance() {
+        return sensor_RD_distance;
+    }
+}
@@ -0,0 +1,304 @@
+package nn.DenisAleksandrov.dataHarvester;
+
+import nn.DenisAleksandrov.Dataset;
+import nn.DenisAleksandrov.SampleSource;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**********************************************************************
+ * Headless data harvester: drives many robots through a World without
+ * a GUI and records their sensor samples, labelled as CGMoveALine
+ * labels them, straight into a Dataset, a recording or a SampleSource.
+ *
+ * Each step a Driver picks the key the robot is given next. A key the
+ * robot ignores at the edge of the world gives no sample, as in the
+ * viewer, every other key gives one. Every robot has its own random
+ * numbers, split from the seed, and the robots are spread over the
+ * threads, so the samples do not depend on the number of threads.
+ * The samples of a block are ordered by robot.
+ ***********************************************************************/
+
+public class Simulation {
+    // start of every robot, the start of the viewer's robot
+    public static final int START_X = 250;
+    public static final int START_Y = 495;
+    public static final char START_DIRECTION = 'n';
+    public static final String KEYS = "nsew";
+
+    // number of keys in a row a robot may ignore before it is considered stuck
+    static final int MAX_IGNORED = 1000;
+    // samples per block of record
+    static final int BLOCK = 1 << 16;
+
+    /**
+     * Picks the keys the robots are given, called on the robot's thread
+     */
+    public interface Driver {
+        /**
+         * @param robot robot to move, with the distances it sensed last
+         * @param step number of keys given to this robot before, including ignored ones
+         * @param random the robot's own random numbers
+         * @return key to give the robot, n, s, e or w
+         */
+        char next(Robot robot, long step, SplittableRandom random);
+    }
+
+    /**
+     * @param turnProbability chance of a random key each step, the robot keeps its direction otherwise
+     * @return a driver walking the robots at random
+     */
+    public static Driver randomWalk(double turnProbability) {
+        return (robot, step, random) -> random.nextDouble() < turnProbability
+                ? KEYS.charAt(random.nextInt(KEYS.length())) : robot.getDirection();
+    }
+
+    /**
+     * @param keys keys to give every robot, over and over, e.g. "nnnnnneeeeee"
+     * @return a driver following the script
+     * @throws IllegalArgumentException if the script is empty or holds other keys than n, s, e and w
+     */
+    public static Driver script(String keys) {
+        if(keys.isEmpty()) throw new IllegalArgumentException("Empty script");
+        for(int i = 0; i < keys.length(); i++){
+            if(KEYS.indexOf(keys.charAt(i)) < 0){
+                throw new IllegalArgumentException("Key " + keys.charAt(i) + " is none of " + KEYS);
+            }
+        }
+        return (robot, step, random) -> keys.charAt((int) (step % keys.length()));
+    }
+
+    private final Driver driver;
+    private final Robot[] robots;
+    private final SplittableRandom[] randoms;
+    private final long[] steps;
+
+    /**
+     * @param world world to move in, shared read-only by all robots
+     * @param driver picks the keys of every robot
+     * @param robots number of robots, the most threads that can work at once
+     * @param seed seed of the robots' random numbers
+     */
+    public Simulation(World world, Driver driver, int robots, long seed) {
+        this.driver = driver;
+        this.robots = new Robot[robots];
+        randoms = new SplittableRandom[robots];
+        steps = new long[robots];
+        SplittableRandom random = new SplittableRandom(seed);
+        for(int i = 0; i < robots; i++){
+            this.robots[i] = new Robot(world, START_X, START_Y, START_DIRECTION);
+            randoms[i] = random.split();
+        }
+    }
+
+    /**
+     * Gives the robot keys until it takes one and senses
+     * @throws IllegalStateException if the robot ignores MAX_IGNORED keys in a row
+     */
+    private void step(int i) {
+        Robot robot = robots[i];
+        int ignored = 0;
+        while(!robot.move(driver.next(robot, steps[i]++, randoms[i]))){
+            if(++ignored == MAX_IGNORED){
+                throw new IllegalStateException("Robot " + i + " at " + robot.getX() + ", " + robot.getY()
+                        + " ignored " + MAX_IGNORED + " keys in a row");
+            }
+        }
+        robot.sense();
+    }
+
+    /**
+     * Simulates samples into flat row-major matrices, see Dataset
+     * @param targets expected to hold zeros in the rows written
+     * @param first row of the first sample
+     * @param count number of samples, spread evenly over the robots
+     */
+    private void simulate(ForkJoinPool pool, double[] inputs, double[] targets, int first, int count) {
+        List<Callable<Void>> tasks = new ArrayList<>(robots.length);
+        for(int i = 0, row = first; i < robots.length; i++){
+            int from = row;
+            int share = count / robots.length + (i < count % robots.length ? 1 : 0);
+            int robot = i;
+            tasks.add(() -> {
+                for(int sample = from; sample < from + share; sample++){
+                    step(robot);
+                    robots[robot].label(inputs, sample * Robot.SENSORS, targets, sample * 3 * Robot.SENSORS);
+                }
+                return null;
+            });
+            row += share;
+        }
+        run(pool, tasks);
+    }
+
+    /**
+     * Simulates samples into a data set with the data harvester's widths
+     * @pre samples * 3 * Robot.SENSORS <= Integer.MAX_VALUE
+     * @param samples number of samples
+     * @param threads number of threads to simulate on
+     * @return the samples
+     */
+    public Dataset generate(int samples, int threads) {
+        double[] inputs = new double[samples * Robot.SENSORS];
+        double[] targets = new double[samples * 3 * Robot.SENSORS];
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try{
+            simulate(pool, inputs, targets, 0, samples);
+        }
+        finally{
+            pool.shutdown();
+        }
+        return new Dataset(inputs, targets, Robot.SENSORS, 3 * Robot.SENSORS);
+    }
+
+    /**
+     * Simulates samples into a recording in the viewer's format, one "LD, F, RD, B, flags..." line per sample.
+     * Blocks of BLOCK samples are formatted in parallel and written in order.
+     * @param pathname filepath of the recording, overwritten
+     * @param samples number of samples
+     * @param threads number of threads to simulate on
+     * @throws IOException in the case that the recording cannot be written
+     */
+    public void record(String pathname, long samples, int threads) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try(BufferedWriter out = new BufferedWriter(new FileWriter(pathname), 1 << 16)){
+            StringBuilder[] lines = new StringBuilder[robots.length];
+            for(int i = 0; i < robots.length; i++){
+                lines[i] = new StringBuilder();
+            }
+            for(long done = 0; done < samples; done += BLOCK){
+                int count = (int) Math.min(BLOCK, samples - done);
+                List<Callable<Void>> tasks = new ArrayList<>(robots.length);
+                for(int i = 0; i < robots.length; i++){
+                    int share = count / robots.length + (i < count % robots.length ? 1 : 0);
+                    int robot = i;
+                    tasks.add(() -> {
+                        StringBuilder text = lines[robot];
+                        int[] trainArray = new int[Robot.SAMPLE_WIDTH];
+                        text.setLength(0);
+                        for(int sample = 0; sample < share; sample++){
+                            step(robot);
+                            robots[robot].label(trainArray, 0);
+                            for(int value = 0; value < Robot.SAMPLE_WIDTH - 1; value++){
+                                text.append(trainArray[value]).append(", ");
+                            }
+                            text.append(trainArray[Robot.SAMPLE_WIDTH - 1]).append('\n');
+                        }
+                        return null;
+                    });
+                }
+                run(pool, tasks);
+                for(StringBuilder text : lines){
+                    out.append(text);
+                }
+            }
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Streams simulated samples, e.g. into Trainer.train(SampleSource, ...), every read simulates the samples it
+     * returns in parallel. Closing the source stops its threads.
+     * @param samples number of samples before the source is exhausted
+     * @param threads number of threads to simulate on
+     * @return a source of the samples with the data harvester's widths
+     */
+    public SampleSource stream(long samples, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        return new SampleSource(){
+            private long remaining = samples;
+
+            @Override
+            public int getInputWidth(){
+                return Robot.SENSORS;
+            }
+
+            @Override
+            public int getTargetWidth(){
+                return 3 * Robot.SENSORS;
+            }
+
+            @Override
+            public int read(double[] inputs, double[] targets, int max){
+                int count = (int) Math.min(max, remaining);
+                Arrays.fill(targets, 0, count * 3 * Robot.SENSORS, 0);
+                simulate(pool, inputs, targets, 0, count);
+                remaining -= count;
+                return count;
+            }
+
+            @Override
+            public void close(){
+                pool.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Runs the tasks on the pool and rethrows what the first failed one threw
+     */
+    private static void run(ForkJoinPool pool, List<Callable<Void>> tasks) {
+        for(Future<Void> result : pool.invokeAll(tasks)){
+            try{
+                result.get();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while simulating", e);
+            }
+            catch(ExecutionException e){
+                if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Prints the samples per minute of random walks on 1 thread and on every core, and the share of FAR, NEAR and
+     * BLOCKING labels per sensor.
+     * Usage: Simulation [samples] [recording-file], the recording is written with the samples if given.
+     */
+    public static void main(String[] args) throws IOException {
+        int samples = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        Dataset data = null;
+        for(int threads : cores > 1 ? new int[]{1, cores} : new int[]{1}){
+            // the first run on each thread count warms up the JIT
+            new Simulation(World.standard(), randomWalk(0.1), 64, 1).generate(samples / 10, threads);
+            long start = System.nanoTime();
+            data = new Simulation(World.standard(), randomWalk(0.1), 64, 1).generate(samples, threads);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d threads: %d samples in %.2f s, %.1f million samples per minute%n", threads,
+                    samples, seconds, samples / seconds * 60 / 1e6);
+        }
+        double[] targets = data.getTargets();
+        String[] sensors = {"LD", "F", "RD", "B"};
+        for(int sensor = 0; sensor < Robot.SENSORS; sensor++){
+            long[] states = new long[3];
+            for(int sample = 0; sample < data.SIZE; sample++){
+                for(int state = 0; state < 3; state++){
+                    if(targets[sample * 3 * Robot.SENSORS + 3 * sensor + state] == 1) states[state]++;
+                }
+            }
+            System.out.printf("%-2s  FAR %5.1f%%  NEAR %5.1f%%  BLOCKING %5.1f%%%n", sensors[sensor],
+                    100.0 * states[0] / data.SIZE, 100.0 * states[1] / data.SIZE, 100.0 * states[2] / data.SIZE);
+        }
+        if(args.length > 1){
+            long start = System.nanoTime();
+            new Simulation(World.standard(), randomWalk(0.1), 64, 1).record(args[1], samples, cores);
+            System.out.printf("recorded %d samples to %s in %.2f s%n", samples, args[1],
+                    (System.nanoTime() - start) / 1e9);
+        }
+    }
+}
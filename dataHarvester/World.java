@@ -0,0 +1,74 @@
+package nn.DenisAleksandrov.dataHarvester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**********************************************************************
+ * Grid the robots move in, one cell per pixel of the viewer's canvas.
+ * A cell is 'B' if a wall runs through it and ' ' if it is empty.
+ ***********************************************************************/
+
+public class World {
+    public static final int STANDARD_WIDTH = 500;
+    public static final int STANDARD_HEIGHT = 500;
+
+    public final int WIDTH;
+    public final int HEIGHT;
+
+    // cells[x][y]
+    final char[][] cells;
+    private final List<int[]> walls = new ArrayList<>();
+
+    /**
+     * @param width number of cells along x
+     * @param height number of cells along y
+     */
+    public World(int width, int height) {
+        WIDTH = width;
+        HEIGHT = height;
+        cells = new char[width][height];
+        for(int x=0;x<width;x++)
+            for(int y=0;y<height;y++)
+                cells[x][y]=' '; // empty spaces
+    }
+
+    /**
+     * @return the world of the data harvester, 500 x 500 with its four walls
+     */
+    public static World standard() {
+        World world = new World(STANDARD_WIDTH, STANDARD_HEIGHT);
+        world.addWall(40, 40, 70, 40);
+        world.addWall(20, 220, 400, 220);
+        world.addWall(70, 40, 70, 150);
+        world.addWall(70, 160, 70, 300);
+        return world;
+    }
+
+    /**
+     * Blocks the cells of a wall the way the harvester always has: |x2 - x1| cells to the right of (x1, y1)
+     * and |y2 - y1| cells below it, so only walls drawn left to right or top to bottom end where they are drawn
+     * @pre the cells lie inside the world
+     */
+    public void addWall(int x1, int y1, int x2, int y2) {
+        int deltaX = Math.abs(x1-x2);
+        int deltaY = Math.abs(y1-y2);
+        for(int x=0;x<deltaX;x++) cells[x1+x][y1] = 'B';
+        for(int y=0;y<deltaY;y++) cells[x1][y1+y] = 'B';
+        walls.add(new int[]{x1, y1, x2, y2});
+    }
+
+    /**
+     * @return whether a wall runs through the cell
+     */
+    public boolean isBlocked(int x, int y) {
+        return cells[x][y] == 'B';
+    }
+
+    /**
+     * @return the walls as {x1, y1, x2, y2} in the order they were added, for drawing
+     */
+    public List<int[]> getWalls() {
+        return Collections.unmodifiableList(walls);
+    }
+}